@@ -1,52 +1,86 @@
 package io.github.hbusul;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.Stack;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class BasicXMLWriter {
+public class BasicXMLWriter implements TreeWriter {
 
-    private BufferedWriter writer;
-    private Stack<String> elementStack;
+    /* Open and close tags are built once per element name and shared by all writers */
+    private static class Tag {
+        final int id;
+        final String open;
+        final String close;
+
+        Tag(int id, String name) {
+            this.id = id;
+            open = "<" + name + ">";
+            close = "</" + name + ">";
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Tag> tags = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextTagId = new AtomicInteger();
+    private static final String SPACES = "                                                                ";
+
+    private Writer writer;
+    private int[] elementStack; //ids of the open tags
+    private int depth;
     private int indent = 0;
     private boolean first;
     private boolean valuePut;
 
 
-    public BasicXMLWriter(BufferedWriter writer) {
+    public BasicXMLWriter(Writer writer) {
         this.writer = writer;
-        elementStack = new Stack<>();
+        elementStack = new int[16];
+        depth = 0;
         first = true;
         valuePut = false;
     }
 
+    private static Tag tag(String tagName) {
+        Tag tag = tags.get(tagName);
+        if (tag == null)
+            tag = tags.computeIfAbsent(tagName, name -> new Tag(nextTagId.getAndIncrement(), name));
+        return tag;
+    }
+
     private void indent() throws IOException {
-        for (int i = 0; i < indent; i++) {
-            writer.write(" ");
+        int remaining = indent;
+        while (remaining > 0) {
+            int n = Math.min(remaining, SPACES.length());
+            writer.write(SPACES, 0, n);
+            remaining -= n;
         }
     }
 
     public void openTag(String tagName) throws IOException {
+        Tag tag = tag(tagName);
         valuePut = false;
         if (!first)
-            writer.write("\n");
+            writer.write('\n');
         indent();
         indent += 2;
-        writer.write("<" + tagName + ">");
-        elementStack.push(tagName);
+        writer.write(tag.open);
+        if (depth == elementStack.length)
+            elementStack = Arrays.copyOf(elementStack, depth * 2);
+        elementStack[depth++] = tag.id;
         if (first)
             first = false;
     }
 
     public void closeTag(String tagName) throws IOException {
+        Tag tag = tag(tagName);
         indent -= 2;
         if(!valuePut){
-            writer.write("\n");
+            writer.write('\n');
             indent();
         }
-        writer.write("</" + tagName + ">");
-        String pop = elementStack.pop();
-        if (!pop.equals(tagName)) {
+        writer.write(tag.close);
+        if (depth == 0 || elementStack[--depth] != tag.id) {
             throw new RuntimeException("Incorrect close");
         }
         valuePut = false;
@@ -54,29 +88,40 @@ public class BasicXMLWriter {
 
     public void writeValue(String str) throws IOException {
         valuePut = true;
-        writer.write(" " + escape(str) + " ");
+        writer.write(' ');
+        writeEscaped(str);
+        writer.write(' ');
     }
 
-    private String escape(String str) {
-        StringBuilder builder = new StringBuilder();
+    private void writeEscaped(String str) throws IOException {
         int len = str.length();
+        int start = 0;
         for (int i = 0; i < len; i++) {
+            String entity;
             char c = str.charAt(i);
             if (c == '"') {
-                builder.append("&quot;");
+                entity = "&quot;";
             } else if (c == '&') {
-                builder.append("&amp;");
+                entity = "&amp;";
             } else if (c == '\'') {
-                builder.append("&apos;");
+                entity = "&apos;";
             } else if (c == '<') {
-                builder.append("&lt;");
+                entity = "&lt;";
             } else if (c == '>') {
-                builder.append("&gt;");
+                entity = "&gt;";
             } else {
-                builder.append(c);
+                continue;
             }
+            writer.write(str, start, i - start);
+            writer.write(entity);
+            start = i + 1;
         }
-        return builder.toString();
+        //values without special characters are written in one go
+        writer.write(str, start, len - start);
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
     }
 
     public void close() throws IOException {
@@ -0,0 +1,190 @@
+package io.github.hbusul;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/*
+ * Reads the .jkt files written by BinaryTreeWriter, one element at a time in document order. Only the string and
+ * level tables at the end of the file are read at first. Each level is then read through a window of its own
+ * when its first element is reached, so the levels below setMaxDepth are never read.
+ */
+class BinaryTreeReader implements Closeable {
+    private static final int WINDOW_SIZE = 1 << 16;
+
+    private FileChannel channel;
+    private String[] strings;
+    //varints are read from data at position
+    private byte[] data;
+    private int position;
+
+    //the next record and the end of each level, and the part of the file in its window
+    private long[] cursors;
+    private long[] ends;
+    private byte[][] windows;
+    private long[] windowStarts;
+    private int[] windowLengths;
+    //the children not read yet of each open element
+    private int[] remaining;
+    private int open;
+    private int maxDepth = Integer.MAX_VALUE;
+
+    private int depth;
+    private String name;
+    private String value;
+
+    BinaryTreeReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        if (size < BinaryTreeWriter.MAGIC.length + 1 + 4)
+            throw new RuntimeException("Not a binary tree dump");
+        byte[] header = read(0, BinaryTreeWriter.MAGIC.length + 1);
+        for (int i = 0; i < BinaryTreeWriter.MAGIC.length; i++) {
+            if (header[i] != BinaryTreeWriter.MAGIC[i])
+                throw new RuntimeException("Not a binary tree dump");
+        }
+        if (header[4] != BinaryTreeWriter.VERSION)
+            throw new RuntimeException("Unsupported binary tree dump version " + header[4]);
+
+        byte[] end = read(size - 4, 4);
+        long tableOffset = ((end[0] & 0xFFL) << 24) | ((end[1] & 0xFF) << 16) | ((end[2] & 0xFF) << 8) |
+                (end[3] & 0xFF);
+        if (tableOffset < header.length || tableOffset > size - 4)
+            throw new RuntimeException("Broken binary tree dump");
+        data = read(tableOffset, (int) (size - 4 - tableOffset));
+        position = 0;
+        strings = new String[readVarint()];
+        for (int i = 0; i < strings.length; i++) {
+            int length = readVarint();
+            strings[i] = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+        }
+        int levels = readVarint();
+        cursors = new long[levels];
+        ends = new long[levels];
+        windows = new byte[levels][];
+        windowStarts = new long[levels];
+        windowLengths = new int[levels];
+        remaining = new int[levels + 1];
+        long start = header.length;
+        for (int level = 0; level < levels; level++) {
+            cursors[level] = windowStarts[level] = start;
+            start = ends[level] = start + readVarint();
+        }
+    }
+
+    static BinaryTreeReader read(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            return new BinaryTreeReader(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private byte[] read(long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        read(offset, bytes, length);
+        return bytes;
+    }
+
+    private void read(long offset, byte[] bytes, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new RuntimeException("Broken binary tree dump");
+        }
+    }
+
+    /* Moves the window of a level to its next record if the record is not all in it */
+    private void window(int level) throws IOException {
+        if (windows[level] == null)
+            windows[level] = new byte[(int) Math.min(WINDOW_SIZE, ends[level] - cursors[level])];
+        long windowEnd = windowStarts[level] + windowLengths[level];
+        if (cursors[level] + BinaryTreeWriter.MAX_RECORD <= windowEnd || windowEnd == ends[level])
+            return;
+        windowStarts[level] = cursors[level];
+        windowLengths[level] = (int) Math.min(windows[level].length, ends[level] - cursors[level]);
+        read(windowStarts[level], windows[level], windowLengths[level]);
+    }
+
+    private int readVarint() {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[position++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /* Skips the children of the elements at depth, e.g. 2 for the subroutine declarations of a class */
+    void setMaxDepth(int depth) {
+        maxDepth = depth;
+    }
+
+    /* Moves to the next element, returns false when there are no more */
+    boolean next() throws IOException {
+        while (open > 0 && remaining[open - 1] == 0)
+            open--;
+        if (open == 0 && (cursors.length == 0 || cursors[0] >= ends[0]))
+            return false;
+        if (open > 0)
+            remaining[open - 1]--;
+        depth = open;
+        if (depth == cursors.length || cursors[depth] >= ends[depth])
+            throw new RuntimeException("Broken binary tree dump");
+        window(depth);
+        data = windows[depth];
+        position = (int) (cursors[depth] - windowStarts[depth]);
+        int length = readVarint();
+        cursors[depth] = windowStarts[depth] + position + length;
+        name = strings[readVarint()];
+        int valueId = readVarint();
+        value = valueId == 0 ? null : strings[valueId - 1];
+        int children = readVarint();
+        remaining[open++] = depth < maxDepth ? children : 0;
+        return true;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /* null if the element has children instead of a value */
+    String getValue() {
+        return value;
+    }
+
+    /* Writes the remaining elements to writer, e.g. a BasicXMLWriter to get back the xml dump */
+    void writeTo(TreeWriter writer) throws IOException {
+        ArrayList<String> open = new ArrayList<>();
+        while (next()) {
+            while (open.size() > depth)
+                writer.closeTag(open.remove(open.size() - 1));
+            writer.openTag(name);
+            open.add(name);
+            if (value != null)
+                writer.writeValue(value);
+        }
+        while (!open.isEmpty())
+            writer.closeTag(open.remove(open.size() - 1));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,198 @@
+package io.github.hbusul;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Compact binary form of the parse tree and token dumps (.jkt files):
+ *   "JKTB" version
+ *   levels, by depth:            the records of the elements at depth 0, then those at depth 1, ...
+ *       record = length payload, in document order within a level
+ *       payload = nameId valueId+1 (0 when the element has no value) childCount, all varints
+ *   string table:                count (length bytes)*   - element names and values, each stored once
+ *   level table:                 count (length in bytes of each level)*
+ *   offset of the string table:  4 bytes, big endian
+ * The children of the elements of a level are the next level in the same order, so the top of a tree (e.g.
+ * the subroutine declarations of a class) is read without reading the rest, and a reader skips records by
+ * their length. A record is complete when its element is closed, each level is kept in a buffer until then and
+ * the full buffers go to a temporary file, so a large tree takes a few buffers of memory.
+ */
+class BinaryTreeWriter implements TreeWriter {
+    static final byte[] MAGIC = {'J', 'K', 'T', 'B'};
+    static final int VERSION = 2;
+    private static final int LEVEL_BUFFER_SIZE = 1 << 16;
+    static final int MAX_RECORD = 16; //a length byte and three varints of at most 5 bytes
+
+    private OutputStream out;
+    private long position;
+    private HashMap<String, Integer> ids;
+    private ArrayList<String> strings;
+
+    //the name, value and number of children of each open element
+    private int depth;
+    private int[] names = new int[16];
+    private int[] values = new int[16];
+    private int[] childCounts = new int[16];
+
+    //the records of each level not written yet: the full buffers in spill, the rest in levels
+    private byte[][] levels = new byte[0][];
+    private int[] fills = new int[0];
+    private long[] levelLengths = new long[0];
+    private ArrayList<ArrayList<Long>> spilled = new ArrayList<>(); //offset in spill and length of each buffer
+    private FileChannel spill;
+    private byte[] record = new byte[MAX_RECORD];
+
+    /* out should be buffered */
+    BinaryTreeWriter(OutputStream out) throws IOException {
+        this.out = out;
+        ids = new HashMap<>();
+        strings = new ArrayList<>();
+        out.write(MAGIC);
+        out.write(VERSION);
+        position = MAGIC.length + 1;
+    }
+
+    private int id(String str) {
+        Integer id = ids.get(str);
+        if (id == null) {
+            id = strings.size();
+            ids.put(str, id);
+            strings.add(str);
+        }
+        return id;
+    }
+
+    private static int putVarint(byte[] buffer, int at, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[at++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[at++] = (byte) value;
+        return at;
+    }
+
+    private void writeVarint(int value) throws IOException {
+        int length = putVarint(record, 0, value);
+        out.write(record, 0, length);
+        position += length;
+    }
+
+    /* Adds the record of the element closed at depth to its level */
+    private void writeRecord(int depth) throws IOException {
+        int length = putVarint(record, 1, names[depth]);
+        length = putVarint(record, length, values[depth]);
+        length = putVarint(record, length, childCounts[depth]);
+        record[0] = (byte) (length - 1); //a payload is at most 15 bytes, its length fits in one varint byte
+        if (depth >= levels.length) { //the first element closed is the deepest so far
+            int count = levels.length;
+            levels = Arrays.copyOf(levels, depth + 1);
+            fills = Arrays.copyOf(fills, depth + 1);
+            levelLengths = Arrays.copyOf(levelLengths, depth + 1);
+            for (int level = count; level <= depth; level++) {
+                levels[level] = new byte[LEVEL_BUFFER_SIZE];
+                spilled.add(new ArrayList<>());
+            }
+        }
+        if (fills[depth] + length > LEVEL_BUFFER_SIZE)
+            spill(depth);
+        System.arraycopy(record, 0, levels[depth], fills[depth], length);
+        fills[depth] += length;
+        levelLengths[depth] += length;
+    }
+
+    /* Moves the buffer of a level to the end of the temporary file */
+    private void spill(int depth) throws IOException {
+        if (spill == null)
+            spill = FileChannel.open(Files.createTempFile("jkt", null), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        spilled.get(depth).add(spill.size());
+        spilled.get(depth).add((long) fills[depth]);
+        ByteBuffer buffer = ByteBuffer.wrap(levels[depth], 0, fills[depth]);
+        while (buffer.hasRemaining())
+            spill.write(buffer, spill.size());
+        fills[depth] = 0;
+    }
+
+    @Override
+    public void openTag(String tagName) throws IOException {
+        if (depth > 0)
+            childCounts[depth - 1]++;
+        if (depth == names.length) {
+            names = Arrays.copyOf(names, depth * 2);
+            values = Arrays.copyOf(values, depth * 2);
+            childCounts = Arrays.copyOf(childCounts, depth * 2);
+        }
+        names[depth] = id(tagName);
+        values[depth] = 0;
+        childCounts[depth] = 0;
+        depth++;
+    }
+
+    @Override
+    public void closeTag(String tagName) throws IOException {
+        writeRecord(--depth);
+    }
+
+    @Override
+    public void writeValue(String str) throws IOException {
+        if (depth == 0)
+            throw new RuntimeException("Value outside of an element");
+        values[depth - 1] = id(str) + 1;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out == null)
+            return;
+        try {
+            while (depth > 0)
+                writeRecord(--depth);
+            byte[] chunk = spill != null ? new byte[LEVEL_BUFFER_SIZE] : null;
+            for (int level = 0; level < levels.length; level++) {
+                ArrayList<Long> buffers = spilled.get(level);
+                for (int i = 0; i < buffers.size(); i += 2) {
+                    int length = (int) (long) buffers.get(i + 1);
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                    while (buffer.hasRemaining())
+                        spill.read(buffer, buffers.get(i) + buffer.position());
+                    out.write(chunk, 0, length);
+                }
+                out.write(levels[level], 0, fills[level]);
+                position += levelLengths[level];
+            }
+            long tableOffset = position;
+            writeVarint(strings.size());
+            for (String str : strings) {
+                byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+                writeVarint(bytes.length);
+                out.write(bytes);
+                position += bytes.length;
+            }
+            writeVarint(levels.length);
+            for (long length : levelLengths)
+                writeVarint((int) length);
+            out.write((int) (tableOffset >>> 24));
+            out.write((int) (tableOffset >>> 16));
+            out.write((int) (tableOffset >>> 8));
+            out.write((int) tableOffset);
+        } finally {
+            if (spill != null)
+                spill.close();
+            out.close();
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,829 @@
+package io.github.hbusul;
+
+import io.github.hbusul.ClassFileWriter.Code;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import static io.github.hbusul.ClassFileWriter.Opcodes.*;
+
+/*
+ * Translates the functions of a vm program to the static methods of one JVM class, which VMMachine loads so
+ * that HotSpot compiles the Jack program as it does Java code. A function with n arguments is the method
+ * int f(int a0, ..., int an-1):
+ *   - the working stack of the vm is the operand stack of the JVM, a call passes the values on top of it as
+ *     the arguments of an invokestatic and return is ireturn
+ *   - arguments, locals and the pointers this and that are JVM locals
+ *   - static, temp and the memory behind this and that are in the Hack RAM, a short[]
+ * Values are 16 bits, they are kept as ints in the range of a short: add, sub and neg truncate.
+ *
+ * A function that can not be a method of its own is run by the interpreter of VMMachine through a stub
+ * method: its code would be over 32K, it has more than 255 arguments or the stack is not the same height
+ * at a label from every jump to it. OS functions the program does not define are bridges to HackOS.
+ */
+class BytecodeCompiler {
+
+    static final String CLASS_NAME = "io/github/hbusul/JackProgram";
+    private static final String OS = "io/github/hbusul/HackOS";
+    private static final String MACHINE = "io/github/hbusul/VMMachine";
+    private static final String PROFILER = "io/github/hbusul/VMProfiler";
+    private static final String HEAP = "io/github/hbusul/VMHeapTracker";
+    private static final int MAX_ARGUMENTS = 255;
+
+    //a function is known by its id: the functions of the program first, then the OS functions it calls
+    private final ArrayList<String> names = new ArrayList<>();
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final ArrayList<VMFunction> functions = new ArrayList<>();
+    private final ArrayList<Method> builtins = new ArrayList<>(); //null for undefined functions
+    private int[] argumentCounts;
+    private int[] staticBases;
+    private boolean[] interpreted;
+
+    private ClassFileWriter classFile;
+    private VMProfiler profiler;
+    private VMHeapTracker heap;
+    //the JVM locals of the function being translated
+    private int thisLocal;
+    private int thatLocal;
+    private int ramLocal;
+    private int valueLocal;
+    //with a profiler, longs: the instructions counted when the function started, those counted in the calls it
+    //made and in the calls it made to itself, and when the current call or call to itself started (-1 if none)
+    private int startLocal;
+    private int callsLocal;
+    private int recursiveLocal;
+    private int callStartLocal;
+    private int recursiveStartLocal;
+    private int sizeLocal; //the argument of the program's Memory.alloc with a heap tracker
+
+    BytecodeCompiler(VMProgram program) {
+        int nextStatic = HackOS.STATIC_BASE;
+        HashMap<VMFunction, Integer> bases = new HashMap<>();
+        for (String fileName : program.getFileNames()) {
+            int statics = 0;
+            for (VMFunction function : program.getFunctions(fileName)) {
+                bases.put(function, nextStatic);
+                for (VMCommand command : function.commands)
+                    if (command.arg1 != null && command.arg1.equals("static"))
+                        statics = Math.max(statics, command.arg2 + 1);
+            }
+            nextStatic += statics;
+        }
+        if (nextStatic > HackOS.STATIC_END)
+            throw new RuntimeException("Too many static variables, " + (nextStatic - HackOS.STATIC_BASE));
+
+        for (VMFunction function : program.getFunctions()) {
+            ids.put(function.name, names.size());
+            names.add(function.name);
+            functions.add(function);
+            builtins.add(null);
+        }
+        for (VMFunction function : program.getFunctions())
+            for (VMCommand command : function.commands)
+                if (command.is("call") && !ids.containsKey(command.arg1))
+                    addBuiltin(command.arg1);
+
+        argumentCounts = new int[names.size()];
+        staticBases = new int[names.size()];
+        for (int id = 0; id < bases.size(); id++) {
+            staticBases[id] = bases.get(functions.get(id));
+            for (VMCommand command : functions.get(id).commands)
+                if (command.is("push", "argument") || command.is("pop", "argument"))
+                    argumentCounts[id] = Math.max(argumentCounts[id], command.arg2 + 1);
+        }
+        for (int id = 0; id < names.size(); id++) {
+            //the OS passes all the arguments to the program's versions of its functions too
+            Method builtin = id < bases.size() ? builtinMethod(names.get(id)) : builtins.get(id);
+            if (builtin != null)
+                argumentCounts[id] = Math.max(argumentCounts[id], builtin.getParameterCount());
+        }
+        for (VMFunction function : program.getFunctions()) {
+            for (VMCommand command : function.commands) {
+                if (!command.is("call"))
+                    continue;
+                int id = ids.get(command.arg1);
+                if (builtins.get(id) != null && command.arg2 > argumentCounts[id])
+                    throw new RuntimeException(command.arg1 + " takes " + argumentCounts[id] + " arguments, " +
+                            function.name + " calls it with " + command.arg2);
+                argumentCounts[id] = Math.max(argumentCounts[id], command.arg2);
+            }
+        }
+    }
+
+    private void addBuiltin(String name) {
+        ids.put(name, names.size());
+        names.add(name);
+        functions.add(null);
+        builtins.add(builtinMethod(name));
+    }
+
+    /* The HackOS method of an OS function, null if there is none */
+    private static Method builtinMethod(String name) {
+        Method builtin = null;
+        for (Method method : HackOS.class.getDeclaredMethods())
+            if (method.getName().equals(name.replace('.', '_')) && method.getReturnType() == int.class)
+                builtin = method;
+        return builtin;
+    }
+
+    int getFunctionCount() {
+        return names.size();
+    }
+
+    /* -1 if the program neither defines nor calls it */
+    int getId(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    String getName(int id) {
+        return names.get(id);
+    }
+
+    /* null for OS functions */
+    VMFunction getFunction(int id) {
+        return functions.get(id);
+    }
+
+    boolean isDefined(int id) {
+        return functions.get(id) != null || builtins.get(id) != null;
+    }
+
+    int getArgumentCount(int id) {
+        return argumentCounts[id];
+    }
+
+    int getStaticBase(int id) {
+        return staticBases[id];
+    }
+
+    boolean isInterpreted(int id) {
+        return interpreted[id];
+    }
+
+    String getMethodName(int id) {
+        StringBuilder name = new StringBuilder("f" + id + "$");
+        for (char c : names.get(id).toCharArray())
+            name.append(".;[/<>".indexOf(c) >= 0 ? '$' : c);
+        return name.toString();
+    }
+
+    static String descriptor(int arguments) {
+        return "(" + "I".repeat(arguments) + ")I";
+    }
+
+    /*
+     * The class file, every function of the program is interpreted if interpretAll. With a profiler the code
+     * counts what it does in it, with a heap tracker it passes the allocations of the program and their sites
+     * to it.
+     */
+    byte[] compile(boolean interpretAll, VMProfiler profiler, VMHeapTracker heap) {
+        this.profiler = profiler;
+        this.heap = heap;
+        classFile = new ClassFileWriter(CLASS_NAME);
+        classFile.addField(ClassFileWriter.ACC_STATIC, "ram", "[S");
+        classFile.addField(ClassFileWriter.ACC_STATIC, "os", "L" + OS + ";");
+        classFile.addField(ClassFileWriter.ACC_STATIC, "machine", "L" + MACHINE + ";");
+        classFile.addField(ClassFileWriter.ACC_STATIC, "profiler", "L" + PROFILER + ";");
+        classFile.addField(ClassFileWriter.ACC_STATIC, "heap", "L" + HEAP + ";");
+        classFile.addMethod(initializer());
+
+        interpreted = new boolean[names.size()];
+        for (int id = 0; id < names.size(); id++) {
+            Code code;
+            if (functions.get(id) == null) {
+                code = bridge(id);
+            } else {
+                code = interpretAll ? null : translate(id);
+                if (code == null) {
+                    interpreted[id] = true;
+                    code = stub(id);
+                }
+            }
+            classFile.addMethod(code);
+        }
+        return classFile.toByteArray();
+    }
+
+    /* static void init(VMMachine machine, HackOS os, VMProfiler profiler, VMHeapTracker heap) */
+    private Code initializer() {
+        Code code = new Code(ClassFileWriter.ACC_STATIC, "init", "(L" + MACHINE + ";L" + OS + ";L" + PROFILER +
+                ";L" + HEAP + ";)V");
+        code.maxStack = 1;
+        code.maxLocals = 4;
+        code.loadReference(2);
+        code.op2(PUTSTATIC, classFile.fieldRef(CLASS_NAME, "profiler", "L" + PROFILER + ";"));
+        code.loadReference(3);
+        code.op2(PUTSTATIC, classFile.fieldRef(CLASS_NAME, "heap", "L" + HEAP + ";"));
+        code.loadReference(0);
+        code.op2(PUTSTATIC, classFile.fieldRef(CLASS_NAME, "machine", "L" + MACHINE + ";"));
+        code.loadReference(1);
+        code.op2(PUTSTATIC, classFile.fieldRef(CLASS_NAME, "os", "L" + OS + ";"));
+        code.loadReference(1);
+        code.op2(GETFIELD, classFile.fieldRef(OS, "ram", "[S"));
+        code.op2(PUTSTATIC, classFile.fieldRef(CLASS_NAME, "ram", "[S"));
+        code.op(RETURN);
+        return code;
+    }
+
+    /* Calls the HackOS method of an OS function, or VMMachine.undefined if there is none */
+    private Code bridge(int id) {
+        int arguments = argumentCounts[id];
+        Method builtin = builtins.get(id);
+        Code code = new Code(ClassFileWriter.ACC_STATIC, getMethodName(id), descriptor(arguments));
+        code.maxStack = arguments + 2;
+        code.maxLocals = arguments;
+        if (profiler != null) {
+            code.op2(GETSTATIC, classFile.fieldRef(CLASS_NAME, "profiler", "L" + PROFILER + ";"));
+            code.pushInt(id);
+            code.op2(INVOKEVIRTUAL, classFile.methodRef(PROFILER, "called", "(I)V"));
+        }
+        if (builtin == null) {
+            code.op2(GETSTATIC, classFile.fieldRef(CLASS_NAME, "machine", "L" + MACHINE + ";"));
+            code.pushInt(id);
+            code.op2(INVOKEVIRTUAL, classFile.methodRef(MACHINE, "undefined", "(I)I"));
+        } else {
+            code.op2(GETSTATIC, classFile.fieldRef(CLASS_NAME, "os", "L" + OS + ";"));
+            for (int k = 0; k < builtin.getParameterCount(); k++)
+                code.load(k);
+            code.op2(INVOKEVIRTUAL, classFile.methodRef(OS, builtin.getName(),
+                    descriptor(builtin.getParameterCount())));
+        }
+        code.op(IRETURN);
+        addOutOfRangeHandler(code, id, 0);
+        return code;
+    }
+
+    /* Passes the arguments to VMMachine.interpret as an array */
+    private Code stub(int id) {
+        int arguments = argumentCounts[id];
+        Code code = new Code(ClassFileWriter.ACC_STATIC, getMethodName(id), descriptor(arguments));
+        code.maxStack = 6;
+        code.maxLocals = arguments;
+        trackFree(code, id);
+        code.op2(GETSTATIC, classFile.fieldRef(CLASS_NAME, "machine", "L" + MACHINE + ";"));
+        code.pushInt(id);
+        code.pushInt(arguments);
+        code.op1(NEWARRAY, T_INT);
+        for (int k = 0; k < arguments; k++) {
+            code.op(DUP);
+            code.pushInt(k);
+            code.load(k);
+            code.op(IASTORE);
+        }
+        code.op2(INVOKEVIRTUAL, classFile.methodRef(MACHINE, "interpret", "(I[I)I"));
+        trackAllocation(code, id, 0); //the interpreter has a copy of the arguments
+        code.op(IRETURN);
+        addOutOfRangeHandler(code, id, 0);
+        return code;
+    }
+
+    /* The method of a function, null if it can not be one */
+    private Code translate(int id) {
+        VMFunction function = functions.get(id);
+        int arguments = argumentCounts[id];
+        int[] depths = stackDepths(function);
+        if (arguments > MAX_ARGUMENTS || depths == null)
+            return null;
+
+        thisLocal = arguments + function.numberOfLocalVariables;
+        thatLocal = thisLocal + 1;
+        ramLocal = thisLocal + 2;
+        valueLocal = thisLocal + 3;
+        Code code = new Code(ClassFileWriter.ACC_STATIC, getMethodName(id), descriptor(arguments));
+        code.maxLocals = valueLocal + 1;
+        sizeLocal = valueLocal + 1;
+        int maxDepth = 0;
+        for (int depth : depths)
+            maxDepth = Math.max(maxDepth, depth);
+        int padding = 0;
+        for (VMCommand command : function.commands)
+            if (command.is("call"))
+                padding = Math.max(padding, argumentCounts[ids.get(command.arg1)] - command.arg2);
+        code.maxStack = maxDepth + Math.max(padding, 3) + 1;
+        if (heap != null)
+            code.maxStack += 2; //heap.site = site
+        int[] blocks = null;
+        HashSet<String> loops = null;
+        if (profiler != null) {
+            startLocal = valueLocal + 1;
+            callsLocal = startLocal + 2;
+            recursiveLocal = startLocal + 4;
+            callStartLocal = startLocal + 6;
+            recursiveStartLocal = startLocal + 8;
+            code.maxLocals = startLocal + 10;
+            sizeLocal = startLocal + 10;
+            code.maxStack += 8; //the arguments of exit
+            blocks = blockLengths(function);
+            loops = loopLabels(function);
+        }
+
+        code.op2(GETSTATIC, classFile.fieldRef(CLASS_NAME, "ram", "[S"));
+        code.storeReference(ramLocal);
+        for (int local = arguments; local < ramLocal; local++) {
+            code.pushInt(0);
+            code.store(local);
+        }
+        if (profiler != null) {
+            loadInstructions(code);
+            code.storeLong(startLocal);
+            for (int local : new int[]{callsLocal, recursiveLocal}) {
+                code.op(LCONST_0);
+                code.storeLong(local);
+            }
+            for (int local : new int[]{callStartLocal, recursiveStartLocal}) {
+                code.pushInt(-1);
+                code.op(I2L);
+                code.storeLong(local);
+            }
+        }
+        if (isAllocator(id)) {
+            code.maxLocals = sizeLocal + 1;
+            code.load(0);
+            code.store(sizeLocal);
+        }
+        trackFree(code, id);
+        int bodyStart = code.size();
+        HashMap<String, Integer> labels = new HashMap<>();
+        for (VMCommand command : function.commands)
+            if (command.is("label"))
+                labels.put(command.arg1, code.newLabel());
+
+        ArrayList<VMCommand> commands = function.commands;
+        for (int i = 0; i < commands.size(); i++) {
+            if (depths[i] < 0)
+                continue; //never reached
+            VMCommand command = commands.get(i);
+            if (blocks != null && blocks[i] > 0)
+                countInstructions(code, blocks[i]);
+            switch (command.command) {
+                case "push":
+                    push(code, command, function, arguments, staticBases[id]);
+                    break;
+                case "pop":
+                    pop(code, command, function, arguments, staticBases[id]);
+                    break;
+                case "add":
+                    code.op(IADD);
+                    code.op(I2S);
+                    break;
+                case "sub":
+                    code.op(ISUB);
+                    code.op(I2S);
+                    break;
+                case "neg":
+                    code.op(INEG);
+                    code.op(I2S);
+                    break;
+                case "and":
+                    code.op(IAND);
+                    break;
+                case "or":
+                    code.op(IOR);
+                    break;
+                case "not":
+                    code.pushInt(-1);
+                    code.op(IXOR);
+                    break;
+                case "eq":
+                case "gt":
+                case "lt":
+                    //a comparison that is only jumped on is one if_icmp
+                    if (i + 1 < commands.size() && commands.get(i + 1).is("if-goto")) {
+                        code.jump(comparison(command.command, false), labels.get(commands.get(i + 1).arg1));
+                        i++;
+                    } else if (i + 2 < commands.size() && commands.get(i + 1).is("not") &&
+                            commands.get(i + 2).is("if-goto")) {
+                        code.jump(comparison(command.command, true), labels.get(commands.get(i + 2).arg1));
+                        i += 2;
+                    } else {
+                        int otherwise = code.newLabel();
+                        int end = code.newLabel();
+                        code.jump(comparison(command.command, true), otherwise);
+                        code.pushInt(-1);
+                        code.jump(GOTO, end);
+                        code.placeLabel(otherwise);
+                        code.pushInt(0);
+                        code.placeLabel(end);
+                    }
+                    break;
+                case "label":
+                    code.placeLabel(labels.get(command.arg1));
+                    if (loops != null && loops.contains(command.arg1))
+                        loop(code, profiler.loopId(id, command.arg1, command.line));
+                    break;
+                case "goto":
+                    code.jump(GOTO, labels.get(command.arg1));
+                    break;
+                case "if-goto":
+                    code.jump(IFNE, labels.get(command.arg1));
+                    break;
+                case "call":
+                    int target = ids.get(command.arg1);
+                    for (int k = command.arg2; k < argumentCounts[target]; k++)
+                        code.pushInt(0);
+                    if (setsSite(id, target))
+                        setSite(code, heap.siteId(id, command.line));
+                    int callStart = target == id ? recursiveStartLocal : callStartLocal;
+                    if (profiler != null) {
+                        loadInstructions(code);
+                        code.storeLong(callStart);
+                    }
+                    code.op2(INVOKESTATIC, classFile.methodRef(CLASS_NAME, getMethodName(target),
+                            descriptor(argumentCounts[target])));
+                    if (profiler != null)
+                        countCall(code, callStart, target == id);
+                    break;
+                case "return":
+                    trackAllocation(code, id, sizeLocal);
+                    exit(code, id);
+                    code.op(IRETURN);
+                    break;
+                default:
+                    throw new RuntimeException("Unknown vm command " + command + " in " + function.name);
+            }
+        }
+        if (depths[commands.size()] >= 0) {
+            code.pushInt(0); //the function ends without a return
+            trackAllocation(code, id, sizeLocal);
+            exit(code, id);
+            code.op(IRETURN);
+        }
+        addOutOfRangeHandler(code, id, bodyStart);
+        if (profiler != null)
+            addUnwoundHandler(code, id, bodyStart);
+        return code.isTooLarge() ? null : code;
+    }
+
+    /* The program's own Memory.alloc, with a heap tracker */
+    private boolean isAllocator(int id) {
+        return heap != null && names.get(id).equals("Memory.alloc") && argumentCounts[id] > 0;
+    }
+
+    /* A call the program makes into the OS, with a heap tracker, the allocations in it are made at its site */
+    boolean setsSite(int caller, int target) {
+        return heap != null && !isOS(caller) && isOS(target);
+    }
+
+    private boolean isOS(int id) {
+        String name = names.get(id);
+        return SignatureIndex.isOSClass(name.substring(0, name.indexOf('.')));
+    }
+
+    /* heap.site = site */
+    private void setSite(Code code, int site) {
+        code.op2(GETSTATIC, classFile.fieldRef(CLASS_NAME, "heap", "L" + HEAP + ";"));
+        code.pushInt(site);
+        code.op2(PUTFIELD, classFile.fieldRef(HEAP, "site", "I"));
+    }
+
+    /* heap.allocated(address, size) before the program's Memory.alloc returns the address */
+    private void trackAllocation(Code code, int id, int sizeLocal) {
+        if (!isAllocator(id))
+            return;
+        code.op(DUP);
+        code.op2(GETSTATIC, classFile.fieldRef(CLASS_NAME, "heap", "L" + HEAP + ";"));
+        code.op(SWAP);
+        code.load(sizeLocal);
+        code.op2(INVOKEVIRTUAL, classFile.methodRef(HEAP, "allocated", "(II)V"));
+    }
+
+    /* heap.freed(object) when the program's Memory.deAlloc starts */
+    private void trackFree(Code code, int id) {
+        if (heap == null || !names.get(id).equals("Memory.deAlloc") || argumentCounts[id] == 0)
+            return;
+        code.op2(GETSTATIC, classFile.fieldRef(CLASS_NAME, "heap", "L" + HEAP + ";"));
+        code.load(0);
+        code.op2(INVOKEVIRTUAL, classFile.methodRef(HEAP, "freed", "(I)V"));
+    }
+
+    private void loadProfiler(Code code) {
+        code.op2(GETSTATIC, classFile.fieldRef(CLASS_NAME, "profiler", "L" + PROFILER + ";"));
+    }
+
+    /* profiler.instructions */
+    private void loadInstructions(Code code) {
+        loadProfiler(code);
+        code.op2(GETFIELD, classFile.fieldRef(PROFILER, "instructions", "J"));
+    }
+
+    /* profiler.trips[loop]++ */
+    private void loop(Code code, int loop) {
+        loadProfiler(code);
+        code.op2(GETFIELD, classFile.fieldRef(PROFILER, "trips", "[J"));
+        code.pushInt(loop);
+        code.op(DUP2);
+        code.op(LALOAD);
+        code.op(LCONST_1);
+        code.op(LADD);
+        code.op(LASTORE);
+    }
+
+    /* Adds the instructions since callStart to those of the calls (to itself if recursive), callStart = -1 */
+    private void countCall(Code code, int callStart, boolean recursive) {
+        loadInstructions(code);
+        code.loadLong(callStart);
+        code.op(LSUB);
+        if (recursive) {
+            code.op(DUP2);
+            code.loadLong(recursiveLocal);
+            code.op(LADD);
+            code.storeLong(recursiveLocal);
+        }
+        code.loadLong(callsLocal);
+        code.op(LADD);
+        code.storeLong(callsLocal);
+        code.pushInt(-1);
+        code.op(I2L);
+        code.storeLong(callStart);
+    }
+
+    /* profiler.exit(id, start, calls, recursive) if there is a profiler */
+    private void exit(Code code, int id) {
+        if (profiler == null)
+            return;
+        loadProfiler(code);
+        code.pushInt(id);
+        for (int local : new int[]{startLocal, callsLocal, recursiveLocal})
+            code.loadLong(local);
+        code.op2(INVOKEVIRTUAL, classFile.methodRef(PROFILER, "exit", "(IJJJ)V"));
+    }
+
+    /*
+     * Sys.halt and errors leave the method through this, it passes the counts of the call to profiler.unwound
+     * and throws the exception on. It is added after the out of range handler and covers it.
+     */
+    private void addUnwoundHandler(Code code, int id, int start) {
+        int end = code.size();
+        code.addHandler(start, end, end, 0);
+        loadProfiler(code);
+        code.pushInt(id);
+        for (int local : new int[]{startLocal, callsLocal, recursiveLocal, callStartLocal, recursiveStartLocal})
+            code.loadLong(local);
+        code.op2(INVOKEVIRTUAL, classFile.methodRef(PROFILER, "unwound", "(IJJJJJ)V"));
+        code.op(ATHROW);
+        code.maxStack = Math.max(code.maxStack, 13);
+    }
+
+    /* profiler.instructions += count */
+    private void countInstructions(Code code, int count) {
+        loadProfiler(code);
+        code.op(DUP);
+        int instructions = classFile.fieldRef(PROFILER, "instructions", "J");
+        code.op2(GETFIELD, instructions);
+        code.pushInt(count);
+        code.op(I2L);
+        code.op(LADD);
+        code.op2(PUTFIELD, instructions);
+    }
+
+    /*
+     * An address outside of the RAM anywhere in the method is reported with the function by
+     * VMMachine.outOfRange, the frames of the hidden class are left out of stack traces.
+     */
+    private void addOutOfRangeHandler(Code code, int id, int start) {
+        int end = code.size();
+        code.addHandler(start, end, end, classFile.classRef("java/lang/ArrayIndexOutOfBoundsException"));
+        code.op2(GETSTATIC, classFile.fieldRef(CLASS_NAME, "machine", "L" + MACHINE + ";"));
+        code.op(SWAP);
+        code.pushInt(id);
+        code.op2(INVOKEVIRTUAL, classFile.methodRef(MACHINE, "outOfRange",
+                "(Ljava/lang/ArrayIndexOutOfBoundsException;I)Ljava/lang/RuntimeException;"));
+        code.op(ATHROW);
+        code.maxStack = Math.max(code.maxStack, 3);
+    }
+
+    /* The if_icmp that jumps when the comparison holds, or when it does not */
+    private static int comparison(String command, boolean negated) {
+        switch (command) {
+            case "eq":
+                return negated ? IF_ICMPNE : IF_ICMPEQ;
+            case "gt":
+                return negated ? IF_ICMPLE : IF_ICMPGT;
+            default:
+                return negated ? IF_ICMPGE : IF_ICMPLT;
+        }
+    }
+
+    private void push(Code code, VMCommand command, VMFunction function, int arguments, int staticBase) {
+        int index = command.arg2;
+        switch (command.arg1) {
+            case "constant":
+                code.pushInt((short) index);
+                break;
+            case "local":
+                code.load(arguments + local(command, function));
+                break;
+            case "argument":
+                code.load(index);
+                break;
+            case "pointer":
+                code.load(pointer(command, function));
+                break;
+            case "this":
+            case "that":
+            case "temp":
+            case "static":
+                address(code, command, function, staticBase);
+                code.op(SALOAD);
+                break;
+            default:
+                throw new RuntimeException("Unknown segment in " + command + " in " + function.name);
+        }
+    }
+
+    private void pop(Code code, VMCommand command, VMFunction function, int arguments, int staticBase) {
+        switch (command.arg1) {
+            case "local":
+                code.store(arguments + local(command, function));
+                break;
+            case "argument":
+                code.store(command.arg2);
+                break;
+            case "pointer":
+                code.store(pointer(command, function));
+                break;
+            case "this":
+            case "that":
+            case "temp":
+            case "static":
+                code.store(valueLocal);
+                address(code, command, function, staticBase);
+                code.load(valueLocal);
+                code.op(SASTORE);
+                break;
+            default:
+                throw new RuntimeException("Can not pop to " + command.arg1 + " in " + function.name);
+        }
+    }
+
+    /* Pushes the RAM and the address of a memory segment slot */
+    private void address(Code code, VMCommand command, VMFunction function, int staticBase) {
+        code.loadReference(ramLocal);
+        switch (command.arg1) {
+            case "this":
+            case "that":
+                code.load(command.arg1.equals("this") ? thisLocal : thatLocal);
+                if (command.arg2 != 0) {
+                    code.pushInt(command.arg2);
+                    code.op(IADD);
+                }
+                break;
+            case "temp":
+                if (command.arg2 > 7)
+                    throw new RuntimeException("No such temp in " + command + " in " + function.name);
+                code.pushInt(5 + command.arg2);
+                break;
+            default:
+                code.pushInt(staticBase + command.arg2);
+        }
+    }
+
+    private static int local(VMCommand command, VMFunction function) {
+        if (command.arg2 >= function.numberOfLocalVariables)
+            throw new RuntimeException("No such local in " + command + " in " + function.name);
+        return command.arg2;
+    }
+
+    private int pointer(VMCommand command, VMFunction function) {
+        if (command.arg2 > 1)
+            throw new RuntimeException("No such pointer in " + command + " in " + function.name);
+        return command.arg2 == 0 ? thisLocal : thatLocal;
+    }
+
+    /*
+     * The number of instructions of the basic block that starts at each command, 0 for the other commands. A
+     * block starts after a label or a jump and ends before a label or after a jump or return.
+     */
+    static int[] blockLengths(VMFunction function) {
+        ArrayList<VMCommand> commands = function.commands;
+        int[] lengths = new int[commands.size()];
+        int start = -1;
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.is("label")) {
+                start = -1;
+                continue;
+            }
+            if (start < 0)
+                start = i;
+            lengths[start]++;
+            if (command.is("goto") || command.is("if-goto") || command.is("return"))
+                start = -1;
+        }
+        return lengths;
+    }
+
+    /* The labels that are jumped back to */
+    static HashSet<String> loopLabels(VMFunction function) {
+        HashSet<String> seen = new HashSet<>();
+        HashSet<String> loops = new HashSet<>();
+        for (VMCommand command : function.commands) {
+            if (command.is("label"))
+                seen.add(command.arg1);
+            else if ((command.is("goto") || command.is("if-goto")) && seen.contains(command.arg1))
+                loops.add(command.arg1);
+        }
+        return loops;
+    }
+
+    /*
+     * The height of the working stack before each command of a function and at its end (-1 where it is never
+     * reached), null if a label is reached with different heights or the stack underflows.
+     */
+    static int[] stackDepths(VMFunction function) {
+        ArrayList<VMCommand> commands = function.commands;
+        HashMap<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < commands.size(); i++)
+            if (commands.get(i).is("label"))
+                labels.put(commands.get(i).arg1, i);
+
+        int[] depths = new int[commands.size() + 1];
+        Arrays.fill(depths, -1);
+        ArrayList<Integer> work = new ArrayList<>();
+        depths[0] = 0;
+        work.add(0);
+        while (!work.isEmpty()) {
+            int i = work.remove(work.size() - 1);
+            if (i == commands.size())
+                continue;
+            VMCommand command = commands.get(i);
+            if (depths[i] < operands(command))
+                return null;
+            int depth = depths[i] + stackEffect(command);
+            int next = i + 1;
+            int target = -1;
+            if (command.is("goto") || command.is("if-goto")) {
+                Integer label = labels.get(command.arg1);
+                if (label == null)
+                    throw new RuntimeException("Unknown label " + command.arg1 + " in " + function.name);
+                target = label;
+                if (command.is("goto"))
+                    next = -1;
+            } else if (command.is("return")) {
+                next = -1;
+            }
+            for (int successor : new int[]{next, target}) {
+                if (successor < 0)
+                    continue;
+                if (depths[successor] < 0) {
+                    depths[successor] = depth;
+                    work.add(successor);
+                } else if (depths[successor] != depth) {
+                    return null;
+                }
+            }
+        }
+        return depths;
+    }
+
+    /* The number of values a command takes off the working stack */
+    static int operands(VMCommand command) {
+        switch (command.command) {
+            case "pop":
+            case "neg":
+            case "not":
+            case "if-goto":
+            case "return":
+                return 1;
+            case "add":
+            case "sub":
+            case "and":
+            case "or":
+            case "eq":
+            case "gt":
+            case "lt":
+                return 2;
+            case "call":
+                return command.arg2;
+            default:
+                return 0;
+        }
+    }
+
+    /* The change in the height of the working stack */
+    static int stackEffect(VMCommand command) {
+        switch (command.command) {
+            case "push":
+                return 1;
+            case "pop":
+            case "add":
+            case "sub":
+            case "and":
+            case "or":
+            case "eq":
+            case "gt":
+            case "lt":
+            case "if-goto":
+            case "return":
+                return -1;
+            case "call":
+                return 1 - command.arg2;
+            default:
+                return 0;
+        }
+    }
+}
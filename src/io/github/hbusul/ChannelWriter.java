@@ -0,0 +1,163 @@
+package io.github.hbusul;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Writes an output file through a FileChannel, in UTF-8. Nearly all of the compiler's output is ASCII, so those
+ * characters are put into direct byte buffers as they are, without a charset encoder; the rest, which can come
+ * from string constants and comments, are encoded here. A surrogate that is not in a pair is written as '?'.
+ * Up to GATHER buffers are filled before they are written with a single gathering write. Buffers are
+ * taken from a pool shared by all writers and returned to it on close, so they are reused between files.
+ */
+class ChannelWriter extends Writer {
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int GATHER = 4;
+    private static final int MAX_POOLED = 64;
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+    private FileChannel channel;
+    private ByteBuffer[] buffers;
+    private int current;
+    private char high; //a high surrogate waiting for its low one, 0 if none
+
+    ChannelWriter(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffers = new ByteBuffer[GATHER];
+        for (int i = 0; i < GATHER; i++)
+            buffers[i] = acquire();
+        current = 0;
+    }
+
+    private static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void release(ByteBuffer buffer) {
+        if (pool.size() < MAX_POOLED)
+            pool.offer(buffer);
+    }
+
+    /* Makes room in the buffers, writing them all out when the last one is full */
+    private ByteBuffer room() throws IOException {
+        ByteBuffer buffer = buffers[current];
+        if (buffer.hasRemaining())
+            return buffer;
+        if (current + 1 < GATHER)
+            return buffers[++current];
+        drain();
+        return buffers[0];
+    }
+
+    private void drain() throws IOException {
+        for (int i = 0; i <= current; i++)
+            buffers[i].flip();
+        ByteBuffer last = buffers[current];
+        while (last.hasRemaining())
+            channel.write(buffers, 0, current + 1);
+        for (int i = 0; i <= current; i++)
+            buffers[i].clear();
+        current = 0;
+    }
+
+    /* Writes a character that is not ASCII, or any character after a high surrogate */
+    private void encode(char c) throws IOException {
+        if (high != 0) {
+            char pending = high;
+            high = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(pending, c);
+                room().put((byte) (0xF0 | codePoint >> 18));
+                room().put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                room().put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                room().put((byte) (0x80 | codePoint & 0x3F));
+                return;
+            }
+            room().put((byte) '?');
+        }
+        if (c < 0x80) {
+            room().put((byte) c);
+        } else if (c < 0x800) {
+            room().put((byte) (0xC0 | c >> 6));
+            room().put((byte) (0x80 | c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            high = c;
+        } else if (Character.isLowSurrogate(c)) {
+            room().put((byte) '?');
+        } else {
+            room().put((byte) (0xE0 | c >> 12));
+            room().put((byte) (0x80 | c >> 6 & 0x3F));
+            room().put((byte) (0x80 | c & 0x3F));
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (c < 128 && high == 0)
+            room().put((byte) c);
+        else
+            encode((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            ByteBuffer buffer = room();
+            int n = Math.min(buffer.remaining(), end - off);
+            int i = 0;
+            for (char c; i < n && (c = cbuf[off + i]) < 128 && high == 0; i++)
+                buffer.put((byte) c);
+            off += i;
+            if (i < n)
+                encode(cbuf[off++]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            ByteBuffer buffer = room();
+            int n = Math.min(buffer.remaining(), end - off);
+            int i = 0;
+            for (char c; i < n && (c = str.charAt(off + i)) < 128 && high == 0; i++)
+                buffer.put((byte) c);
+            off += i;
+            if (i < n)
+                encode(str.charAt(off++));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel == null)
+            return;
+        try {
+            if (high != 0)
+                room().put((byte) '?');
+            drain();
+        } finally {
+            for (ByteBuffer buffer : buffers)
+                release(buffer);
+            buffers = null;
+            channel.close();
+            channel = null;
+        }
+    }
+}
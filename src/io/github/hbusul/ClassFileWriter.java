@@ -0,0 +1,337 @@
+package io.github.hbusul;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Just enough of the JVM class file format for BytecodeCompiler: a constant pool, static fields and static
+ * methods with code. Version 49 class files are written, they are verified by type inference and need no
+ * stack map frames. Branch offsets are 16 bits, so a method is limited to 32K of code (see Code.isTooLarge).
+ */
+class ClassFileWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private DataOutputStream pool = new DataOutputStream(poolBytes);
+    private int poolCount = 1;
+    private HashMap<String, Integer> constants = new HashMap<>();
+
+    private final String className; //internal name, a/b/C
+    private ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+    private int fieldCount;
+    private ArrayList<Code> methods = new ArrayList<>();
+
+    /* The code of a method, branches to labels are patched when the label is placed */
+    static class Code {
+        final int access;
+        final String name;
+        final String descriptor;
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int maxStack;
+        int maxLocals;
+        private ArrayList<Integer> labelPositions = new ArrayList<>();
+        private ArrayList<int[]> jumps = new ArrayList<>(); //position of the opcode, label
+        private ArrayList<int[]> handlers = new ArrayList<>(); //start, end, handler, class of the exception
+
+        Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        boolean isTooLarge() {
+            return bytes.size() > Short.MAX_VALUE;
+        }
+
+        void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        void op1(int opcode, int operand) {
+            bytes.write(opcode);
+            bytes.write(operand);
+        }
+
+        void op2(int opcode, int operand) {
+            bytes.write(opcode);
+            bytes.write(operand >> 8);
+            bytes.write(operand);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5)
+                op(Opcodes.ICONST_0 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+                op1(Opcodes.BIPUSH, value & 0xff);
+            else
+                op2(Opcodes.SIPUSH, value & 0xffff); //the values of the vm are 16 bits
+        }
+
+        void load(int local) {
+            localOp(Opcodes.ILOAD, local);
+        }
+
+        void store(int local) {
+            localOp(Opcodes.ISTORE, local);
+        }
+
+        void loadLong(int local) {
+            localOp(Opcodes.LLOAD, local);
+        }
+
+        void storeLong(int local) {
+            localOp(Opcodes.LSTORE, local);
+        }
+
+        void loadReference(int local) {
+            localOp(Opcodes.ALOAD, local);
+        }
+
+        void storeReference(int local) {
+            localOp(Opcodes.ASTORE, local);
+        }
+
+        private void localOp(int opcode, int local) {
+            if (local < 256) {
+                op1(opcode, local);
+            } else {
+                op(Opcodes.WIDE);
+                op2(opcode, local);
+            }
+        }
+
+        int newLabel() {
+            labelPositions.add(-1);
+            return labelPositions.size() - 1;
+        }
+
+        void placeLabel(int label) {
+            labelPositions.set(label, bytes.size());
+        }
+
+        /* goto or one of the if opcodes */
+        void jump(int opcode, int label) {
+            jumps.add(new int[]{bytes.size(), label});
+            op2(opcode, 0);
+        }
+
+        /*
+         * Exceptions of the class thrown by the code from start until end are handled by the code at handler, all
+         * exceptions if the class is 0
+         */
+        void addHandler(int start, int end, int handler, int exceptionClass) {
+            handlers.add(new int[]{start, end, handler, exceptionClass});
+        }
+
+        private byte[] toByteArray() {
+            byte[] code = bytes.toByteArray();
+            for (int[] jump : jumps) {
+                int offset = labelPositions.get(jump[1]) - jump[0];
+                code[jump[0] + 1] = (byte) (offset >> 8);
+                code[jump[0] + 2] = (byte) offset;
+            }
+            return code;
+        }
+    }
+
+    /* The opcodes that are used */
+    static class Opcodes {
+        static final int ICONST_0 = 0x03;
+        static final int LCONST_0 = 0x09;
+        static final int LCONST_1 = 0x0a;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC = 0x12;
+        static final int ILOAD = 0x15;
+        static final int LLOAD = 0x16;
+        static final int ALOAD = 0x19;
+        static final int IALOAD = 0x2e;
+        static final int LALOAD = 0x2f;
+        static final int SALOAD = 0x35;
+        static final int ISTORE = 0x36;
+        static final int LSTORE = 0x37;
+        static final int ASTORE = 0x3a;
+        static final int IASTORE = 0x4f;
+        static final int LASTORE = 0x50;
+        static final int SASTORE = 0x56;
+        static final int POP = 0x57;
+        static final int DUP = 0x59;
+        static final int DUP2 = 0x5c;
+        static final int SWAP = 0x5f;
+        static final int IADD = 0x60;
+        static final int LADD = 0x61;
+        static final int ISUB = 0x64;
+        static final int LSUB = 0x65;
+        static final int INEG = 0x74;
+        static final int IAND = 0x7e;
+        static final int IOR = 0x80;
+        static final int IXOR = 0x82;
+        static final int I2L = 0x85;
+        static final int I2S = 0x93;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int IF_ICMPEQ = 0x9f;
+        static final int IF_ICMPNE = 0xa0;
+        static final int IF_ICMPLT = 0xa1;
+        static final int IF_ICMPGE = 0xa2;
+        static final int IF_ICMPGT = 0xa3;
+        static final int IF_ICMPLE = 0xa4;
+        static final int GOTO = 0xa7;
+        static final int IRETURN = 0xac;
+        static final int RETURN = 0xb1;
+        static final int GETSTATIC = 0xb2;
+        static final int PUTSTATIC = 0xb3;
+        static final int GETFIELD = 0xb4;
+        static final int PUTFIELD = 0xb5;
+        static final int INVOKEVIRTUAL = 0xb6;
+        static final int INVOKESTATIC = 0xb8;
+        static final int NEWARRAY = 0xbc;
+        static final int ATHROW = 0xbf;
+        static final int WIDE = 0xc4;
+        static final int T_INT = 10;
+    }
+
+    ClassFileWriter(String className) {
+        this.className = className;
+    }
+
+    private int constant(String key, int tag, ConstantWriter writer) {
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        try {
+            pool.writeByte(tag);
+            writer.write();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        constants.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private interface ConstantWriter {
+        void write() throws IOException;
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, 1, () -> pool.writeUTF(value));
+    }
+
+    int integer(int value) {
+        return constant("I" + value, 3, () -> pool.writeInt(value));
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, 7, () -> pool.writeShort(name));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        return constant("N" + name + " " + descriptor, 12, () -> {
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        return constant("F" + owner + " " + name + " " + descriptor, 9, () -> {
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        return constant("M" + owner + " " + name + " " + descriptor, 10, () -> {
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        });
+    }
+
+    void addField(int access, String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        DataOutputStream out = new DataOutputStream(fieldBytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(0); //attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        fieldCount++;
+    }
+
+    void addMethod(Code code) {
+        methods.add(code);
+    }
+
+    byte[] toByteArray() {
+        int thisClass = classRef(className);
+        int superClass = classRef("java/lang/Object");
+        int codeName = utf8("Code");
+        ArrayList<int[]> methodNames = new ArrayList<>();
+        for (Code code : methods)
+            methodNames.add(new int[]{utf8(code.name), utf8(code.descriptor)});
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); //interfaces
+            out.writeShort(fieldCount);
+            fieldBytes.writeTo(out);
+            out.writeShort(methods.size());
+            for (int i = 0; i < methods.size(); i++) {
+                Code code = methods.get(i);
+                byte[] instructions = code.toByteArray();
+                out.writeShort(code.access);
+                out.writeShort(methodNames.get(i)[0]);
+                out.writeShort(methodNames.get(i)[1]);
+                out.writeShort(1); //attributes
+                out.writeShort(codeName);
+                out.writeInt(12 + instructions.length + 8 * code.handlers.size());
+                out.writeShort(code.maxStack);
+                out.writeShort(code.maxLocals);
+                out.writeInt(instructions.length);
+                out.write(instructions);
+                out.writeShort(code.handlers.size());
+                for (int[] handler : code.handlers)
+                    for (int value : handler)
+                        out.writeShort(value);
+                out.writeShort(0); //attributes
+            }
+            out.writeShort(0); //class attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,245 @@
+package io.github.hbusul;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/*
+ * Computes an expression that is repeated in a basic block (the commands between labels and jumps) once,
+ * keeps its value in a new local of the function and pushes the local for the repeats:
+ *     expression, ..., expression  ->  expression, pop local n, push local n, ..., push local n
+ * Expressions are the runs of pushes, arithmetic, the OS Math calls and array reads
+ * (pop pointer 1, push that k) that leave one value, e.g. x * y or a[i + 1]. A repeat is only replaced when
+ * nothing the expression reads was written since the last time it was computed: a pop to a slot it reads,
+ * and for statics, temps, fields and array elements also pops to this or that and any other call.
+ * The new locals are only used in their block, one is taken again where the ones it already holds are not used.
+ */
+class CommonSubexpressions {
+
+    private static final List<String> OPERATIONS = Arrays.asList("neg", "not", "add", "sub", "and", "or", "eq",
+            "gt", "lt");
+    private static final List<String> PURE_CALLS = Arrays.asList("Math.multiply", "Math.divide", "Math.min",
+            "Math.max", "Math.abs");
+    private static final String MEMORY = "memory";
+
+    /* Commands start..end of the block leave one value */
+    private static class Expression {
+        int start;
+        int end;
+        boolean operation;
+        boolean call;
+        HashSet<String> reads = new HashSet<>();
+        String key;
+    }
+
+    private final VMProgram program;
+    private int replaced;
+    private final ArrayList<Integer> temps = new ArrayList<>(); //the locals added to the current function
+
+    CommonSubexpressions(VMProgram program) {
+        this.program = program;
+    }
+
+    /* Returns the number of repeats replaced */
+    int run() {
+        for (VMFunction function : program.getFunctions()) {
+            temps.clear();
+            int start = 0;
+            for (int i = 0; i <= function.commands.size(); i++) {
+                VMCommand command = i < function.commands.size() ? function.commands.get(i) : null;
+                if (command == null || command.is("label")) {
+                    i += eliminate(function, start, i);
+                    start = i + 1;
+                } else if (command.is("goto") || command.is("if-goto") || command.is("return")) {
+                    i += eliminate(function, start, i + 1);
+                    start = i + 1;
+                }
+            }
+        }
+        return replaced;
+    }
+
+    /* Eliminates the repeats in commands start until end, returns the change in the number of commands */
+    private int eliminate(VMFunction function, int start, int end) {
+        int size = function.commands.size();
+        while (eliminateOne(function, start, end + function.commands.size() - size)) {
+            //positions changed, look for expressions again
+        }
+        return function.commands.size() - size;
+    }
+
+    /* Replaces the repeats of the largest repeated expression that has some, returns false if none has */
+    private boolean eliminateOne(VMFunction function, int start, int end) {
+        ArrayList<VMCommand> commands = function.commands;
+        LinkedHashMap<String, ArrayList<Expression>> repeats = new LinkedHashMap<>();
+        ArrayList<Expression> stack = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            VMCommand command = commands.get(i);
+            Expression expression = new Expression();
+            expression.start = i;
+            expression.end = i;
+            int operands = -1;
+            if (command.is("push")) {
+                operands = 0;
+                if (!command.arg1.equals("constant"))
+                    expression.reads.add(slot(command));
+                if (command.arg1.equals("this"))
+                    expression.reads.add("pointer 0");
+                else if (command.arg1.equals("that"))
+                    expression.reads.add("pointer 1");
+                if (!command.arg1.equals("constant") && !command.arg1.equals("local") &&
+                        !command.arg1.equals("argument") && !command.arg1.equals("pointer"))
+                    expression.reads.add(MEMORY);
+            } else if (command.is("neg") || command.is("not")) {
+                operands = 1;
+            } else if (OPERATIONS.contains(command.command)) {
+                operands = 2;
+            } else if (command.is("call") && isPure(command)) {
+                operands = command.arg2;
+                expression.call = true;
+            } else if (command.is("pop", "pointer", 1) && i + 1 < end && commands.get(i + 1).is("push", "that")) {
+                operands = 1; //pointer 1 is left on the element, a repeat can only go while it still is
+                expression.end = ++i;
+                expression.reads.add("pointer 1");
+                expression.reads.add(MEMORY);
+            }
+            if (operands < 0 || operands > stack.size()) {
+                stack.clear();
+                continue;
+            }
+            for (int k = 0; k < operands; k++) {
+                Expression operand = stack.remove(stack.size() - 1);
+                expression.start = operand.start;
+                expression.call |= operand.call;
+                expression.reads.addAll(operand.reads);
+                expression.operation = true;
+            }
+            stack.add(expression);
+            if (expression.operation) {
+                expression.key = commands.subList(expression.start, expression.end + 1).toString();
+                repeats.computeIfAbsent(expression.key, key -> new ArrayList<>()).add(expression);
+            }
+        }
+
+        ArrayList<ArrayList<Expression>> candidates = new ArrayList<>();
+        for (ArrayList<Expression> occurrences : repeats.values())
+            if (occurrences.size() > 1 && isWorth(occurrences))
+                candidates.add(occurrences);
+        candidates.sort((a, b) -> size(b.get(0)) - size(a.get(0)));
+        for (ArrayList<Expression> occurrences : candidates)
+            if (replace(function, occurrences, start, end))
+                return true;
+        return false;
+    }
+
+    /* A repeat saves its commands but one, the first computation costs a pop and a push more */
+    private static boolean isWorth(ArrayList<Expression> occurrences) {
+        return occurrences.get(0).call || (occurrences.size() - 1) * (size(occurrences.get(0)) - 1) > 2;
+    }
+
+    private static int size(Expression expression) {
+        return expression.end - expression.start + 1;
+    }
+
+    private boolean replace(VMFunction function, ArrayList<Expression> occurrences, int start, int end) {
+        //a repeat reuses the last computation if nothing it reads was written since, or is computed again
+        int[] source = new int[occurrences.size()];
+        boolean[] stored = new boolean[occurrences.size()];
+        int computed = -1;
+        for (int k = 0; k < occurrences.size(); k++) {
+            Expression expression = occurrences.get(k);
+            if (computed >= 0 && !isWritten(function.commands, occurrences.get(computed).end + 1, expression.start,
+                    expression.reads)) {
+                source[k] = computed;
+                stored[computed] = true;
+            } else {
+                source[k] = computed = k;
+            }
+        }
+        if (!contains(stored))
+            return false; //every repeat reads something written before it
+
+        ArrayList<VMCommand> commands = function.commands;
+        int firstStored = 0;
+        while (!stored[firstStored])
+            firstStored++;
+        int lastRepeat = occurrences.size() - 1;
+        while (source[lastRepeat] == lastRepeat)
+            lastRepeat--;
+        int local = freeTemp(function, start, end, occurrences.get(firstStored).start,
+                occurrences.get(lastRepeat).end);
+        ArrayList<VMCommand> result = new ArrayList<>(commands.size());
+        int next = 0;
+        for (int k = 0; k < occurrences.size(); k++) {
+            Expression expression = occurrences.get(k);
+            VMCommand last = commands.get(expression.end);
+            if (source[k] != k) {
+                result.addAll(commands.subList(next, expression.start));
+                result.add(new VMCommand("push", "local", local).atLine(last.line));
+                next = expression.end + 1;
+                replaced++;
+            } else if (stored[k]) {
+                result.addAll(commands.subList(next, expression.end + 1));
+                result.add(new VMCommand("pop", "local", local).atLine(last.line));
+                result.add(new VMCommand("push", "local", local).atLine(last.line));
+                next = expression.end + 1;
+            }
+        }
+        result.addAll(commands.subList(next, commands.size()));
+        function.commands = result;
+        return true;
+    }
+
+    /* A local added before that commands start until end do not use from first to last, or a new one */
+    private int freeTemp(VMFunction function, int start, int end, int first, int last) {
+        for (int temp : temps) {
+            int from = end;
+            int to = -1;
+            for (int i = start; i < end; i++) {
+                VMCommand command = function.commands.get(i);
+                if (command.is("push", "local", temp) || command.is("pop", "local", temp)) {
+                    from = Math.min(from, i);
+                    to = i;
+                }
+            }
+            if (to < first || from > last)
+                return temp;
+        }
+        int temp = function.numberOfLocalVariables++;
+        temps.add(temp);
+        return temp;
+    }
+
+    private static boolean contains(boolean[] values) {
+        for (boolean value : values)
+            if (value)
+                return true;
+        return false;
+    }
+
+    /* Whether commands start until end write any of reads */
+    private boolean isWritten(ArrayList<VMCommand> commands, int start, int end, HashSet<String> reads) {
+        for (int i = start; i < end; i++) {
+            VMCommand command = commands.get(i);
+            if (command.is("pop")) {
+                if (reads.contains(slot(command)))
+                    return true;
+                if ((command.arg1.equals("this") || command.arg1.equals("that")) && reads.contains(MEMORY))
+                    return true;
+            } else if (command.is("call") && !isPure(command) && reads.contains(MEMORY)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String slot(VMCommand command) {
+        return command.arg1 + " " + command.arg2;
+    }
+
+    private boolean isPure(VMCommand call) {
+        return PURE_CALLS.contains(call.arg1) && program.getFunction(call.arg1) == null;
+    }
+}
@@ -1,34 +1,275 @@
 package io.github.hbusul;
 
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.stream.IntStream;
 
 
 @SuppressWarnings("Duplicates")
 public class CompilationEngine implements AutoCloseable {
 
     private JackTokenizer tokenizer;
-    private BasicXMLWriter xmlWriter;
+    private TreeWriter xmlWriter;
     private SymbolTable classLevelSymbolTable;
     private SymbolTable subroutineLevelSymbolTable;
     private VMWriter outputWriter;
     private int nextLabelNumber;
     private String className;
+    private KeywordType subroutineKind;
+    private SignatureIndex signatureIndex;
+    private boolean streaming;
+    private boolean sourceMap;
+    private CharSequence source; //set to compile the subroutines in parallel
+
+    /*
+     * Errors do not stop the compilation: each one is recorded and the parser skips to the next statement or
+     * subroutine (panic mode), so that a single pass finds the errors of the whole file. After the first error
+     * the parse tree is no longer written and the outputs of the file should be thrown away.
+     */
+    private ArrayList<Diagnostic> diagnostics = new ArrayList<>();
+    private TreeWriter treeOutput;
+    private boolean atEnd; //the last token is current, there is nothing to advance to
+    private boolean quiet; //errors after the input ran out while recovering are only noise
+
+    /* Keeps the parse tree of a subroutine that is compiled in parallel until it can be written in order */
+    private static class RecordingTreeWriter implements TreeWriter {
+        private StringBuilder kinds = new StringBuilder(); //o, c or v for each call
+        private ArrayList<String> values = new ArrayList<>();
+
+        @Override
+        public void openTag(String tagName) {
+            kinds.append('o');
+            values.add(tagName);
+        }
+
+        @Override
+        public void closeTag(String tagName) {
+            kinds.append('c');
+            values.add(tagName);
+        }
+
+        @Override
+        public void writeValue(String str) {
+            kinds.append('v');
+            values.add(str);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void replay(TreeWriter writer) throws IOException {
+            for (int i = 0; i < values.size(); i++) {
+                char kind = kinds.charAt(i);
+                if (kind == 'o')
+                    writer.openTag(values.get(i));
+                else if (kind == 'c')
+                    writer.closeTag(values.get(i));
+                else
+                    writer.writeValue(values.get(i));
+            }
+        }
+    }
+
+    /* A subroutine compiled in parallel */
+    private static class Unit {
+        int offset; //of its first token in the source
+        int end; //offset of the token after it
+        int line;
+        int lineStart;
+        RecordingTreeWriter tree;
+        String vmCode;
+        int labels; //labels are numbered from 0 in each
+        boolean compiled; //without errors, up to the end of its part of the source
+    }
 
     /*Each input file is a class */
     CompilationEngine(String inputFileName) throws IOException {
-        tokenizer = new JackTokenizer(inputFileName);
-        String fileName = inputFileName.substring(0, inputFileName.length() - 5);
-        BufferedWriter writer = new BufferedWriter(new FileWriter(fileName + ".xml"));
-        xmlWriter = new BasicXMLWriter(writer);
-        outputWriter = new VMWriter(new BufferedWriter(new FileWriter(fileName + ".vm")));
+        this(inputFileName, null);
+    }
+
+    /* With a signature index calls to the classes of the program are checked against their declarations */
+    CompilationEngine(String inputFileName, SignatureIndex signatureIndex) throws IOException {
+        this(new JackTokenizer(inputFileName), signatureIndex,
+                new BasicXMLWriter(new ChannelWriter(inputFileName.substring(0, inputFileName.length() - 5) + ".xml")),
+                new ChannelWriter(inputFileName.substring(0, inputFileName.length() - 5) + ".vm"));
+    }
+
+    /*
+     * Compiles the tokens of tokenizer, the parse tree is written to treeOutput and the vm code to vmOutput.
+     * vmOutput is written a few characters at a time, it should be buffered.
+     */
+    CompilationEngine(JackTokenizer tokenizer, SignatureIndex signatureIndex, TreeWriter treeOutput,
+                      Writer vmOutput) throws IOException {
+        this.tokenizer = tokenizer;
+        this.signatureIndex = signatureIndex;
+        this.treeOutput = treeOutput;
+        xmlWriter = treeOutput;
+        outputWriter = new VMWriter(vmOutput);
+        nextLabelNumber = 0;
+        try {
+            advance();
+        } catch (RuntimeException e) {
+            report(e);
+        }
+    }
+
+    /* Errors found so far, in the order of the source */
+    List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    boolean hasErrors() {
+        return !diagnostics.isEmpty();
+    }
+
+    /* Records e at the current token */
+    private void report(RuntimeException e) {
+        if (quiet)
+            return;
+        if (atEnd)
+            quiet = true;
+        String message = e.getMessage() != null ? e.getMessage() : e.toString();
+        diagnostics.add(new Diagnostic(tokenizer.getInputFileName(), tokenizer.getLine(), tokenizer.getColumn(),
+                message));
+        xmlWriter = TreeWriter.NONE;
+    }
+
+    private void advance() throws IOException {
         if (tokenizer.hasMoreTokens())
             tokenizer.advance();
-        nextLabelNumber = 0;
+        else
+            atEnd = true;
+    }
+
+    private void checkEnd() {
+        if (atEnd)
+            throw new RuntimeException("Unexpected end of file");
+    }
+
+    /* Advances for recovery, errors of the tokenizer are reported and skipped too */
+    private boolean skip() throws IOException {
+        while (true) {
+            try {
+                advance();
+                return !atEnd;
+            } catch (RuntimeException e) {
+                report(e);
+            }
+        }
+    }
+
+    private boolean isKeyword(KeywordType keywordType) {
+        return tokenizer.getTokenType() == TokenType.KEYWORD && tokenizer.keyword() == keywordType;
+    }
+
+    private boolean isSymbol(char symbol) {
+        return tokenizer.getTokenType() == TokenType.SYMBOL && tokenizer.symbol() == symbol;
+    }
+
+    private boolean isSubroutineStart() {
+        return isKeyword(KeywordType.CONSTRUCTOR) || isKeyword(KeywordType.FUNCTION) || isKeyword(KeywordType.METHOD);
+    }
+
+    private boolean isDeclarationStart() {
+        return isSubroutineStart() || isKeyword(KeywordType.STATIC) || isKeyword(KeywordType.FIELD) ||
+                isKeyword(KeywordType.VAR) || isKeyword(KeywordType.CLASS);
+    }
+
+    private boolean isStatementStart() {
+        return isKeyword(KeywordType.LET) || isKeyword(KeywordType.DO) || isKeyword(KeywordType.IF) ||
+                isKeyword(KeywordType.WHILE) || isKeyword(KeywordType.RETURN);
+    }
+
+    /*
+     * Skips the rest of a statement that has an error: up to and including its ';', up to the end of its
+     * blocks, or up to the next statement. The '}' of the enclosing block is left for the caller.
+     * moved tells whether the statement consumed any tokens, if not at least one is skipped.
+     */
+    private void skipStatement(boolean moved) throws IOException {
+        int depth = 0;
+        while (!atEnd) {
+            if (isSymbol('}')) {
+                if (depth == 0)
+                    return;
+                depth--;
+                if (depth == 0) {
+                    if (!skip() || !isKeyword(KeywordType.ELSE))
+                        return;
+                    moved = true;
+                    continue;
+                }
+            } else if (isSymbol('{')) {
+                depth++;
+            } else if (depth == 0 && isSymbol(';')) {
+                skip();
+                return;
+            } else if (depth == 0 && moved && (isStatementStart() || isDeclarationStart())) {
+                return;
+            }
+            skip();
+            moved = true;
+        }
+    }
+
+    /* Skips to the next subroutine declaration. The end of the class may be skipped too, so it is not missed. */
+    private void skipSubroutine() throws IOException {
+        do {
+            skip();
+        } while (!atEnd && !isSubroutineStart());
+        quiet |= atEnd;
+    }
+
+    /* Skips the rest of a class variable declaration */
+    private void skipClassVarDec() throws IOException {
+        while (!atEnd) {
+            if (isSymbol(';')) {
+                skip();
+                return;
+            }
+            skip();
+            if (isDeclarationStart())
+                return;
+        }
+        quiet = true;
+    }
+
+    /*
+     * In streaming mode the output is flushed after every subroutine, nothing bigger than an expression or the
+     * then block of a reordered if statement is kept in memory.
+     */
+    void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /*
+     * Compiles the subroutines of the class in parallel, source is the text the tokenizer reads. The output is
+     * the same as when they are compiled one after the other.
+     */
+    void setParallel(CharSequence source) {
+        this.source = source;
+    }
+
+    /* Marks the vm code with the Jack lines it comes from, see SourceMapWriter */
+    void setSourceMap(boolean sourceMap) {
+        this.sourceMap = sourceMap;
+        if (sourceMap)
+            outputWriter.enableSourceLines();
+    }
+
+    /* Line of the current token, only looked up for the source map */
+    private int sourceLine() {
+        return sourceMap ? tokenizer.getLine() : 0;
     }
 
     private String generateLabel() {
@@ -37,10 +278,11 @@ public class CompilationEngine implements AutoCloseable {
     }
 
     private void consumeKeyword(KeywordType keywordType) throws IOException {
+        checkEnd();
         if (tokenizer.getTokenType() == TokenType.KEYWORD) {
             if (tokenizer.keyword() != keywordType) {
-                throw new RuntimeException("Expected a while keyword, found '" +
-                        tokenizer.keyword() + "' keyword");
+                throw new RuntimeException("Expected '" + keywordType.toString().toLowerCase(Locale.US) +
+                        "', found '" + tokenizer.keyword().toString().toLowerCase(Locale.US) + "'");
             }
         } else {
             throw new RuntimeException("Expected a keyword, found " + tokenizer.getTokenType());
@@ -48,11 +290,11 @@ public class CompilationEngine implements AutoCloseable {
         xmlWriter.openTag("keyword");
         xmlWriter.writeValue(keywordType.toString().toLowerCase(Locale.US));
         xmlWriter.closeTag("keyword");
-        if (tokenizer.hasMoreTokens())
-            tokenizer.advance();
+        advance();
     }
 
     private void consumeSymbol(char symbol) throws IOException {
+        checkEnd();
         if (tokenizer.getTokenType() == TokenType.SYMBOL) {
             if (tokenizer.symbol() != symbol) {
                 throw new RuntimeException(String.format("Expected '%c', found '%c'", symbol, tokenizer.symbol()));
@@ -63,34 +305,34 @@ public class CompilationEngine implements AutoCloseable {
         xmlWriter.openTag("symbol");
         xmlWriter.writeValue(symbol + "");
         xmlWriter.closeTag("symbol");
-        if (tokenizer.hasMoreTokens())
-            tokenizer.advance();
+        advance();
     }
 
     private void consumeSymbolWeak(char symbol) throws IOException {
+        if (atEnd) return;
         if (tokenizer.getTokenType() != TokenType.SYMBOL) return; //don't throw exception
         if (tokenizer.symbol() != symbol) return; //don't throw exception
         xmlWriter.openTag("symbol");
         xmlWriter.writeValue(symbol + "");
         xmlWriter.closeTag("symbol");
-        if (tokenizer.hasMoreTokens())
-            tokenizer.advance();
+        advance();
     }
 
     private int consumeIntConst() throws IOException {
+        checkEnd();
         if (tokenizer.getTokenType() != TokenType.INT_CONST)
             throw new RuntimeException("Expected integer constant, found " + tokenizer.getTokenType());
         int value = tokenizer.intVal();
         xmlWriter.openTag("integerConstant");
         xmlWriter.writeValue(String.valueOf(value));
         xmlWriter.closeTag("integerConstant");
-        if (tokenizer.hasMoreTokens())
-            tokenizer.advance();
+        advance();
 
         return value;
     }
 
     private String consumeStringConst() throws IOException {
+        checkEnd();
         if (tokenizer.getTokenType() != TokenType.STRING_CONST)
             throw new RuntimeException("Expected string constant, found " + tokenizer.getTokenType());
 
@@ -98,8 +340,7 @@ public class CompilationEngine implements AutoCloseable {
         xmlWriter.openTag("stringConstant");
         xmlWriter.writeValue(val);
         xmlWriter.closeTag("stringConstant");
-        if (tokenizer.hasMoreTokens())
-            tokenizer.advance();
+        advance();
 
         return val;
     }
@@ -134,63 +375,162 @@ public class CompilationEngine implements AutoCloseable {
             return false;
     }
 
+    /*
+     * A condition that is a boolean is tested at the bottom so that the back edge is a single if-goto:
+     *     goto TEST, label BODY, statements, label TEST, condition, if-goto BODY
+     * any other value is true only when it is -1, and is tested at the top:
+     *     label TEST, condition, not, if-goto END, statements, goto TEST, label END
+     */
     private void compileWhileStatement() throws IOException {
+        int line = sourceLine();
         xmlWriter.openTag("whileStatement");
         consumeKeyword(KeywordType.WHILE);
-        String label = generateLabel();
-        outputWriter.writeLabel(label);
-        String label2 = generateLabel();
         consumeSymbol('(');
+        outputWriter.forgetThat(); //the condition is reached from the end of the body too
+        outputWriter.beginCapture();
         compileExpression();
+        String condition = outputWriter.endCapture();
         consumeSymbol(')');
 
-        outputWriter.not();
-        outputWriter.writeIfGoto(label2);
+        if (!isBoolean(condition)) {
+            String testLabel = generateLabel();
+            String endLabel = generateLabel();
+            outputWriter.writeLabel(testLabel);
+            writeConditionalJump(condition, false, endLabel);
+
+            consumeSymbol('{');
+            compileStatements();
+            consumeSymbol('}');
+
+            outputWriter.setSourceLine(line);
+            outputWriter.writeGoto(testLabel);
+            outputWriter.writeLabel(endLabel);
+            xmlWriter.closeTag("whileStatement");
+            return;
+        }
+
+        String bodyLabel = generateLabel();
+        String testLabel = generateLabel();
+        outputWriter.writeGoto(testLabel);
+        outputWriter.writeLabel(bodyLabel);
 
         consumeSymbol('{');
         compileStatements();
         consumeSymbol('}');
 
-        outputWriter.writeGoto(label);
-        outputWriter.writeLabel(label2);
+        outputWriter.setSourceLine(line);
+        outputWriter.writeLabel(testLabel);
+        writeConditionalJump(condition, true, bodyLabel);
 
         xmlWriter.closeTag("whileStatement");
     }
 
+    /*
+     * If the condition can be jumped on when false without a not, or is not a boolean, the usual layout is used:
+     *     condition, if-goto ELSE, statements, goto END, label ELSE, statements, label END
+     * otherwise the blocks are swapped so that the jump is taken when the condition is true:
+     *     condition, if-goto THEN, statements of else, goto END, label THEN, statements, label END
+     */
     private void compileIfStatement() throws IOException {
+        int line = sourceLine(); //jumps and labels after the blocks belong to the if
         xmlWriter.openTag("ifStatement");
         consumeKeyword(KeywordType.IF);
         consumeSymbol('(');
+        outputWriter.beginCapture();
         compileExpression();
+        String condition = outputWriter.endCapture();
         consumeSymbol(')');
 
-        outputWriter.not();
-        //expression is compiled
-        //generate label
+        if (negatesCheaply(condition) || !isBoolean(condition)) {
+            String L1 = generateLabel();
+            writeConditionalJump(condition, false, L1);
 
-        String L1 = generateLabel();
-        outputWriter.writeIfGoto(L1);
+            consumeSymbol('{');
+            compileStatements();
+            consumeSymbol('}');
 
-        consumeSymbol('{');
-        compileStatements();
-        consumeSymbol('}');
+            outputWriter.setSourceLine(line);
+            if (tokenizer.getTokenType() == TokenType.KEYWORD && tokenizer.keyword() == KeywordType.ELSE) {
+                String L2 = generateLabel();
+                outputWriter.writeGoto(L2);
+                outputWriter.writeLabel(L1);
+                consumeKeyword(KeywordType.ELSE);
+                consumeSymbol('{');
+                compileStatements();
+                consumeSymbol('}');
+                outputWriter.setSourceLine(line);
+                outputWriter.writeLabel(L2);
+            } else {
+                outputWriter.writeLabel(L1);
+            }
+        } else {
+            String thenLabel = generateLabel();
+            String endLabel = generateLabel();
+            writeConditionalJump(condition, true, thenLabel);
 
-        if (tokenizer.getTokenType() == TokenType.KEYWORD && tokenizer.keyword() == KeywordType.ELSE) {
-            String L2 = generateLabel();
-            outputWriter.writeGoto(L2);
-            outputWriter.writeLabel(L1);
-            consumeKeyword(KeywordType.ELSE);
+            //then block goes after the else block, it starts at a label
+            outputWriter.forgetThat();
+            outputWriter.beginCapture();
             consumeSymbol('{');
             compileStatements();
             consumeSymbol('}');
-            outputWriter.writeLabel(L2);
-        } else {
-            outputWriter.writeLabel(L1);
+            String thenBlock = outputWriter.endCapture();
+
+            outputWriter.forgetThat();
+            if (tokenizer.getTokenType() == TokenType.KEYWORD && tokenizer.keyword() == KeywordType.ELSE) {
+                consumeKeyword(KeywordType.ELSE);
+                consumeSymbol('{');
+                compileStatements();
+                consumeSymbol('}');
+            }
+            outputWriter.setSourceLine(line);
+            outputWriter.writeGoto(endLabel);
+            outputWriter.writeLabel(thenLabel);
+            outputWriter.writeCaptured(thenBlock);
+            outputWriter.setSourceLine(line);
+            outputWriter.writeLabel(endLabel);
         }
 
         xmlWriter.closeTag("ifStatement");
     }
 
+    /* Whether writeConditionalJump can jump when the condition is false without adding a not */
+    private boolean negatesCheaply(String condition) {
+        return condition.endsWith("\nnot\n") || condition.endsWith("\npush constant 0\neq\n");
+    }
+
+    /*
+     * Whether the compiled condition can only be true (-1) or false (0): a comparison, the constant true or false,
+     * or a not of one. Jack only counts -1 as true, so other values can not be jumped on with a bare if-goto.
+     */
+    private static boolean isBoolean(String condition) {
+        while (condition.endsWith("\nnot\n"))
+            condition = condition.substring(0, condition.length() - "not\n".length());
+        return condition.endsWith("\neq\n") || condition.endsWith("\nlt\n") || condition.endsWith("\ngt\n") ||
+                condition.equals("push constant 0\n") || condition.endsWith("\npush constant 0\n") ||
+                condition.equals("push constant 1\nneg\n") || condition.endsWith("\npush constant 1\nneg\n");
+    }
+
+    /*
+     * Writes the compiled condition followed by a jump to label taken when the condition is jumpIf, jumpIf can
+     * only be true for a condition that isBoolean. A trailing not is dropped by flipping jumpIf, which then
+     * tests for non zero, and "x = 0" is false exactly when x is non zero.
+     */
+    private void writeConditionalJump(String condition, boolean jumpIf, String label) throws IOException {
+        while (condition.endsWith("\nnot\n")) {
+            condition = condition.substring(0, condition.length() - "not\n".length());
+            jumpIf = !jumpIf;
+        }
+        if (!jumpIf && condition.endsWith("\npush constant 0\neq\n")) {
+            outputWriter.writeCaptured(condition.substring(0, condition.length() - "push constant 0\neq\n".length()));
+        } else {
+            outputWriter.writeCaptured(condition);
+            if (!jumpIf)
+                outputWriter.not();
+        }
+        outputWriter.writeIfGoto(label);
+    }
+
     private void compileLetStatement() throws IOException {
         xmlWriter.openTag("letStatement");
         consumeKeyword(KeywordType.LET);
@@ -204,41 +544,70 @@ public class CompilationEngine implements AutoCloseable {
         if (kind == null) throw new RuntimeException("Undefined Symbol Kind!");
 
         if (tokenizer.symbol() == '[') {
-            //before calculating the expression push the base address
-            switch (kind) {
-                case ARGUMENT:
-                    outputWriter.writePush("argument", SymbolTable.getIndex(val));
-                    break;
-                case FIELD:
-                    outputWriter.writePush("this", SymbolTable.getIndex(val));
-                    break;
-                case LOCAL:
-                    outputWriter.writePush("local", SymbolTable.getIndex(val));
-                    break;
-                case STATIC:
-                    outputWriter.writePush("static", SymbolTable.getIndex(val));
-                    break;
-            }
-
+            String base = variableAddress(varName);
             consumeSymbol('[');
-            compileExpression();
+            String index = compileArrayIndex();
             consumeSymbol(']');
 
-            //add the base address + offset which will be the address of the array
-            outputWriter.add();
-            // store the value in the temp
-            outputWriter.writePop("temp", 0);
+            int offset = 0;
+            String indexVariable = null;
+            if (index == null) {
+                //offset is on the stack, add the base address
+                pushAddress(base);
+                outputWriter.add();
+                outputWriter.forgetThat();
+            } else if (index.startsWith("constant ")) {
+                offset = Integer.parseInt(index.substring(9));
+            } else {
+                indexVariable = index;
+            }
 
             consumeSymbol('=');
-            compileExpression();
 
+            //compile the expression as if pointer 1 was already set, then decide what has to come before it
+            boolean pointing = index != null && outputWriter.isThatPointing(base, indexVariable);
+            if (index != null)
+                outputWriter.setThatPointing(base, indexVariable);
+            outputWriter.beginCapture();
+            compileExpression();
+            String expression = outputWriter.endCapture();
             consumeSymbol(';');
 
-            //after the calculation
-            outputWriter.writePush("temp", 0);
-            outputWriter.writePop("pointer", 1);
-            outputWriter.writePop("that", 0);
-            //write the result back to array
+            if (!outputWriter.capturedWritesThat()) {
+                //expression leaves pointer 1 alone, point it to the element before and pop the result directly
+                boolean stillPointing = index != null && outputWriter.isThatPointing(base, indexVariable);
+                if (index == null)
+                    outputWriter.writePop("pointer", 1);
+                else if (!pointing)
+                    setThatPointer(base, indexVariable);
+                outputWriter.writeCaptured(expression);
+                outputWriter.writePop("that", offset);
+                if (stillPointing)
+                    outputWriter.setThatPointing(base, indexVariable);
+                else
+                    outputWriter.forgetThat();
+            } else {
+                //keep the address on the stack while the expression uses pointer 1
+                if (index != null) {
+                    if (pointing) {
+                        outputWriter.writePush("pointer", 1);
+                    } else if (outputWriter.capturedReadsThat()) {
+                        setThatPointer(base, indexVariable);
+                        outputWriter.writePush("pointer", 1);
+                    } else {
+                        pushAddress(base);
+                        if (indexVariable != null) {
+                            pushAddress(indexVariable);
+                            outputWriter.add();
+                        }
+                    }
+                }
+                outputWriter.writeCaptured(expression);
+                outputWriter.writePop("temp", 0);
+                outputWriter.writePop("pointer", 1);
+                outputWriter.writePush("temp", 0);
+                outputWriter.writePop("that", offset);
+            }
         } else {
             //not an array manipulation
             consumeSymbol('=');
@@ -265,6 +634,74 @@ public class CompilationEngine implements AutoCloseable {
         xmlWriter.closeTag("letStatement");
     }
 
+    /* Returns "segment index" of a variable, looking at the subroutine level symbol table first */
+    private String variableAddress(String variableName) {
+        int val = subroutineLevelSymbolTable.getVal(variableName);
+        if (val == -1) val = classLevelSymbolTable.getVal(variableName);
+        if (val == -1) throw new RuntimeException("Symbol " + variableName + " could not be found in symbol table");
+
+        SymbolTable.SymbolKind kind = SymbolTable.getKind(val);
+        if (kind == null) throw new RuntimeException("Undefined Symbol Kind!");
+
+        switch (kind) {
+            case ARGUMENT:
+                return "argument " + SymbolTable.getIndex(val);
+            case FIELD:
+                return "this " + SymbolTable.getIndex(val);
+            case LOCAL:
+                return "local " + SymbolTable.getIndex(val);
+            default:
+                return "static " + SymbolTable.getIndex(val);
+        }
+    }
+
+    private void pushAddress(String address) throws IOException {
+        int space = address.indexOf(' ');
+        outputWriter.writePush(address.substring(0, space), Integer.parseInt(address.substring(space + 1)));
+    }
+
+    /* Points pointer 1 to base + indexVariable, or just base if indexVariable is null */
+    private void setThatPointer(String base, String indexVariable) throws IOException {
+        pushAddress(base);
+        if (indexVariable != null) {
+            pushAddress(indexVariable);
+            outputWriter.add();
+        }
+        outputWriter.writePop("pointer", 1);
+        outputWriter.setThatPointing(base, indexVariable);
+    }
+
+    /*
+     * Compiles the expression between the brackets of an array access. If it is a lone integer constant
+     * or variable nothing is written to the vm output and "constant n" or the variable's "segment index"
+     * is returned, otherwise the expression is pushed to the stack and null is returned.
+     */
+    private String compileArrayIndex() throws IOException {
+        TokenType tokenType = tokenizer.getTokenType();
+        if (tokenType == TokenType.INT_CONST || tokenType == TokenType.IDENTIFIER) {
+            tokenizer.mark();
+            if (tokenizer.hasMoreTokens())
+                tokenizer.advance();
+            boolean single = tokenizer.getTokenType() == TokenType.SYMBOL && tokenizer.symbol() == ']';
+            tokenizer.reset();
+
+            if (single) {
+                String index;
+                xmlWriter.openTag("expression");
+                xmlWriter.openTag("term");
+                if (tokenType == TokenType.INT_CONST)
+                    index = "constant " + consumeIntConst();
+                else
+                    index = variableAddress(consumeIdentifier());
+                xmlWriter.closeTag("term");
+                xmlWriter.closeTag("expression");
+                return index;
+            }
+        }
+        compileExpression();
+        return null;
+    }
+
     private void compileDoStatement() throws IOException {
         xmlWriter.openTag("doStatement");
         consumeKeyword(KeywordType.DO);
@@ -277,7 +714,7 @@ public class CompilationEngine implements AutoCloseable {
     private void compileReturnStatement() throws IOException {
         xmlWriter.openTag("returnStatement");
         consumeKeyword(KeywordType.RETURN);
-        if (tokenizer.getTokenType() != TokenType.SYMBOL) {
+        if (!isSymbol(';')) {
             //we have something to return
             compileExpression();
             outputWriter.ret();
@@ -293,34 +730,50 @@ public class CompilationEngine implements AutoCloseable {
 
     private void compileStatements() throws IOException {
         xmlWriter.openTag("statements");
-        while (tokenizer.getTokenType() == TokenType.KEYWORD) {
+        while (!atEnd && tokenizer.getTokenType() == TokenType.KEYWORD) {
             boolean exit = false;
-            switch (tokenizer.keyword()) {
-                case WHILE:
-                    compileWhileStatement();
-                    break;
-                case IF:
-                    compileIfStatement();
-                    break;
-                case LET:
-                    compileLetStatement();
-                    break;
-                case DO:
-                    compileDoStatement();
-                    break;
-                case RETURN:
-                    compileReturnStatement();
-                    break;
-                default:
-                    exit = true;
-                    break;
+            int offset = tokenizer.getOffset();
+            outputWriter.setSourceLine(sourceLine());
+            try {
+                switch (tokenizer.keyword()) {
+                    case WHILE:
+                        compileWhileStatement();
+                        break;
+                    case IF:
+                        compileIfStatement();
+                        break;
+                    case LET:
+                        compileLetStatement();
+                        break;
+                    case DO:
+                        compileDoStatement();
+                        break;
+                    case RETURN:
+                        compileReturnStatement();
+                        break;
+                    default:
+                        exit = true;
+                        break;
+                }
+            } catch (RuntimeException e) {
+                report(e);
+                skipStatement(tokenizer.getOffset() != offset);
             }
             if (exit) break;
         }
         xmlWriter.closeTag("statements");
     }
 
+    /* Errors are collected, see getDiagnostics */
     void compileClass() throws IOException {
+        try {
+            compileClassDec();
+        } catch (RuntimeException e) {
+            report(e);
+        }
+    }
+
+    private void compileClassDec() throws IOException {
         classLevelSymbolTable = new SymbolTable();
 
         xmlWriter.openTag("class");
@@ -328,9 +781,14 @@ public class CompilationEngine implements AutoCloseable {
         className = consumeIdentifier();
         consumeSymbol('{');
 
-        while (tokenizer.getTokenType() == TokenType.KEYWORD &&
+        while (!atEnd && tokenizer.getTokenType() == TokenType.KEYWORD &&
                 (tokenizer.keyword() == KeywordType.STATIC || tokenizer.keyword() == KeywordType.FIELD)) {
-            compileClassVarDec();
+            try {
+                compileClassVarDec();
+            } catch (RuntimeException e) {
+                report(e);
+                skipClassVarDec();
+            }
         }
 
     /*    System.out.println("Class level symbol table");
@@ -338,9 +796,17 @@ public class CompilationEngine implements AutoCloseable {
         System.out.println();
 */
 
-        while (tokenizer.getTokenType() == TokenType.KEYWORD && (tokenizer.keyword() == KeywordType.CONSTRUCTOR ||
+        if (source != null && !atEnd && isSubroutineStart())
+            compileSubroutinesInParallel();
+
+        while (!atEnd && tokenizer.getTokenType() == TokenType.KEYWORD && (tokenizer.keyword() == KeywordType.CONSTRUCTOR ||
                 tokenizer.keyword() == KeywordType.FUNCTION || tokenizer.keyword() == KeywordType.METHOD)) {
-            compileSubroutineDec();
+            try {
+                compileSubroutineDec();
+            } catch (RuntimeException e) {
+                report(e);
+                skipSubroutine();
+            }
         }
 
         consumeSymbol('}');
@@ -348,6 +814,127 @@ public class CompilationEngine implements AutoCloseable {
 
     }
 
+    /*
+     * The extent of each subroutine is found by skipping over its balanced braces, then each one is compiled
+     * by an engine of its own on its part of the source, with the class symbol table, and the outputs are put
+     * together in source order. Labels are numbered from 0 in each part and renumbered when they are put
+     * together. If a part has an error, or the braces do not add up, the tokenizer is put back and the
+     * subroutines are compiled one by one, so that errors are found and reported as usual.
+     */
+    private void compileSubroutinesInParallel() throws IOException {
+        ArrayList<Unit> units = new ArrayList<>();
+        tokenizer.mark();
+        int end;
+        try {
+            end = findSubroutines(units);
+        } catch (RuntimeException e) {
+            end = -1;
+        }
+        if (end < 0 || units.size() < 2) {
+            tokenizer.reset();
+            atEnd = false;
+            return;
+        }
+        for (int i = 0; i < units.size(); i++)
+            units.get(i).end = i + 1 < units.size() ? units.get(i + 1).offset : end;
+
+        try {
+            IntStream.range(0, units.size()).parallel().forEach(i -> {
+                try {
+                    compileUnit(units.get(i));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (units.stream().anyMatch(unit -> !unit.compiled)) {
+            tokenizer.reset();
+            atEnd = false;
+            return;
+        }
+
+        tokenizer.unmark();
+        for (Unit unit : units) {
+            unit.tree.replay(xmlWriter);
+            outputWriter.writeCaptured(renumberLabels(unit.vmCode, nextLabelNumber));
+            nextLabelNumber += unit.labels;
+        }
+    }
+
+    /* Skips the subroutines, returns the offset of the token after them or -1 if the input ends first */
+    private int findSubroutines(ArrayList<Unit> units) throws IOException {
+        while (isSubroutineStart()) {
+            Unit unit = new Unit();
+            unit.offset = tokenizer.getOffset();
+            unit.line = tokenizer.getLine();
+            unit.lineStart = unit.offset - tokenizer.getColumn() + 1;
+            units.add(unit);
+            int depth = 0;
+            do {
+                advance();
+                if (atEnd)
+                    return -1;
+                if (isSymbol('{'))
+                    depth++;
+                else if (isSymbol('}'))
+                    depth--;
+            } while (depth > 0 || !isSymbol('}'));
+            advance();
+            if (atEnd)
+                return -1;
+        }
+        return tokenizer.getOffset();
+    }
+
+    private void compileUnit(Unit unit) throws IOException {
+        String text = source.subSequence(unit.offset, unit.end).toString();
+        JackTokenizer unitTokenizer = new JackTokenizer(text, tokenizer.getInputFileName());
+        unitTokenizer.startAt(unit.offset, unit.line, unit.lineStart);
+        unit.tree = new RecordingTreeWriter();
+        StringWriter vmOutput = new StringWriter();
+        try (CompilationEngine engine = new CompilationEngine(unitTokenizer, signatureIndex, unit.tree, vmOutput)) {
+            engine.className = className;
+            engine.classLevelSymbolTable = classLevelSymbolTable;
+            engine.setSourceMap(sourceMap);
+            try {
+                engine.compileSubroutineDec();
+            } catch (RuntimeException e) {
+                engine.report(e);
+            }
+            unit.compiled = engine.atEnd && !engine.hasErrors();
+            unit.labels = engine.nextLabelNumber;
+        }
+        unit.vmCode = vmOutput.toString();
+    }
+
+    /* Adds offset to the numbers of the labels L0, L1... of code */
+    private static String renumberLabels(String code, int offset) {
+        if (offset == 0)
+            return code;
+        StringBuilder result = new StringBuilder(code.length() + 64);
+        int start = 0;
+        while (start < code.length()) {
+            int end = code.indexOf('\n', start) + 1;
+            int label = -1;
+            if (code.startsWith("label L", start))
+                label = start + 7;
+            else if (code.startsWith("goto L", start))
+                label = start + 6;
+            else if (code.startsWith("if-goto L", start))
+                label = start + 9;
+            if (label < 0) {
+                result.append(code, start, end);
+            } else {
+                result.append(code, start, label);
+                result.append(Integer.parseInt(code.substring(label, end - 1)) + offset).append('\n');
+            }
+            start = end;
+        }
+        return result.toString();
+    }
+
     private void compileClassVarDec() throws IOException {
         xmlWriter.openTag("classVarDec");
         if (tokenizer.getTokenType() != TokenType.KEYWORD)
@@ -409,6 +996,7 @@ public class CompilationEngine implements AutoCloseable {
     }
 
     private void compileSubroutineDec() throws IOException {
+        outputWriter.setSourceLine(sourceLine());
         subroutineLevelSymbolTable = new SymbolTable(); //reset the table
 
         boolean isConstructor = false;
@@ -430,6 +1018,7 @@ public class CompilationEngine implements AutoCloseable {
         }
 
         consumeKeyword(keywordType);
+        subroutineKind = keywordType;
 
 
         TokenType tokenType = tokenizer.getTokenType();
@@ -454,6 +1043,10 @@ public class CompilationEngine implements AutoCloseable {
         compileSubroutineBody(isConstructor, isMethod, currentFunctionName);
 
         xmlWriter.closeTag("subroutineDec");
+        if (streaming) {
+            xmlWriter.flush();
+            outputWriter.flush();
+        }
     }
 
     private void consumeType() throws IOException {
@@ -509,8 +1102,15 @@ public class CompilationEngine implements AutoCloseable {
     private void compileSubroutineBody(boolean isConstructor, boolean isMethod, String currentFunctionName) throws IOException {
         xmlWriter.openTag("subroutineBody");
         consumeSymbol('{');
-        while (tokenizer.getTokenType() == TokenType.KEYWORD && tokenizer.keyword() == KeywordType.VAR)
-            compileVarDec();
+        while (!atEnd && tokenizer.getTokenType() == TokenType.KEYWORD && tokenizer.keyword() == KeywordType.VAR) {
+            int offset = tokenizer.getOffset();
+            try {
+                compileVarDec();
+            } catch (RuntimeException e) {
+                report(e);
+                skipStatement(tokenizer.getOffset() != offset);
+            }
+        }
 
         outputWriter.writeFunction(className + "." + currentFunctionName, subroutineLevelSymbolTable.getNumberOfLocalVariables());
 
@@ -568,14 +1168,14 @@ public class CompilationEngine implements AutoCloseable {
     }
 
     private String consumeIdentifier() throws IOException {
+        checkEnd();
         if (tokenizer.getTokenType() != TokenType.IDENTIFIER)
             throw new RuntimeException("Expected token identifier, found " + tokenizer.getTokenType());
         String identifier = tokenizer.identifier();
         xmlWriter.openTag("identifier");
         xmlWriter.writeValue(identifier);
         xmlWriter.closeTag("identifier");
-        if (tokenizer.hasMoreTokens())
-            tokenizer.advance();
+        advance();
         return identifier;
     }
 
@@ -599,18 +1199,19 @@ public class CompilationEngine implements AutoCloseable {
     }
 
     private char consumeOp() throws IOException {
+        checkEnd();
         if (!isTokenOperator())
             throw new RuntimeException("Current token is not an operator");
         xmlWriter.openTag("symbol");
         char symbol = tokenizer.symbol();
         xmlWriter.writeValue(symbol + "");
         xmlWriter.closeTag("symbol");
-        if (tokenizer.hasMoreTokens())
-            tokenizer.advance();
+        advance();
         return symbol;
     }
 
     private char consumeUnaryOp() throws IOException {
+        checkEnd();
         if (!isTokenUnaryOperator())
             throw new RuntimeException("Current token is not an unary operator");
         xmlWriter.openTag("symbol");
@@ -618,8 +1219,7 @@ public class CompilationEngine implements AutoCloseable {
         xmlWriter.writeValue(symbol + "");
         xmlWriter.closeTag("symbol");
 
-        if (tokenizer.hasMoreTokens())
-            tokenizer.advance();
+        advance();
 
         return symbol;
     }
@@ -667,64 +1267,66 @@ public class CompilationEngine implements AutoCloseable {
         } else {
             if (tokenType == TokenType.IDENTIFIER) {
                 tokenizer.mark(); //save the current values
-                if (tokenizer.hasMoreTokens())
+                char symbol = 0;
+                if (tokenizer.hasMoreTokens()) {
                     tokenizer.advance();
-                tokenType = tokenizer.getTokenType();
-
-                if (tokenType == TokenType.SYMBOL) {
-                    char symbol = tokenizer.symbol();
-                    if (symbol == '[') { //array access
-                        tokenizer.reset();
-                        String arrayName = consumeIdentifier();
-                        int val;
-                        if ((val = subroutineLevelSymbolTable.getVal(arrayName)) == -1)
-                            val = classLevelSymbolTable.getVal(arrayName);
-                        if (val == -1) throw new RuntimeException("WTF");
-                        SymbolTable.SymbolKind kind = SymbolTable.getKind(val);
-                        if (kind == null) throw new RuntimeException("WTF");
-                        outputWriter.writePush(kind.toString().toLowerCase(Locale.US).replace(
-                                "field","local"), SymbolTable.getIndex(val));
-
-                        consumeSymbol('[');
-                        compileExpression();
-                        consumeSymbol(']');
+                    if (tokenizer.getTokenType() == TokenType.SYMBOL)
+                        symbol = tokenizer.symbol();
+                }
+                tokenizer.reset();
+
+                if (symbol == '[') { //array access
+                    String base = variableAddress(consumeIdentifier());
 
+                    consumeSymbol('[');
+                    String index = compileArrayIndex();
+                    consumeSymbol(']');
+
+                    if (index == null) {
+                        pushAddress(base);
                         outputWriter.add();
                         outputWriter.writePop("pointer", 1);
                         outputWriter.writePush("that", 0);
-                    } else if (symbol == '.' || symbol == '(') { //method or function call
-                        tokenizer.reset();
-                        compileSubRoutineCall();
-                    } else { //only variable name
-                        tokenizer.reset();
-                        String variableName = consumeIdentifier();
-                        //first look subroutine-level symbol table
-
-                        int val = subroutineLevelSymbolTable.getVal(variableName);
-                        if (val == -1) {
-                            val = classLevelSymbolTable.getVal(variableName);
-                            if (val == -1) throw new RuntimeException("Symbol could not be found in the table");
-                        }
+                    } else if (index.startsWith("constant ")) {
+                        //constant offsets are folded into the that segment
+                        if (!outputWriter.isThatPointing(base, null))
+                            setThatPointer(base, null);
+                        outputWriter.writePush("that", Integer.parseInt(index.substring(9)));
+                    } else {
+                        if (!outputWriter.isThatPointing(base, index))
+                            setThatPointer(base, index);
+                        outputWriter.writePush("that", 0);
+                    }
+                } else if (symbol == '.' || symbol == '(') { //method or function call
+                    compileSubRoutineCall();
+                } else { //only variable name
+                    String variableName = consumeIdentifier();
+                    //first look subroutine-level symbol table
+
+                    int val = subroutineLevelSymbolTable.getVal(variableName);
+                    if (val == -1) {
+                        val = classLevelSymbolTable.getVal(variableName);
+                        if (val == -1) throw new RuntimeException("Symbol could not be found in the table");
+                    }
 
-                        SymbolTable.SymbolKind kind = SymbolTable.getKind(val);
-                        if (kind == null) {
-                            throw new RuntimeException("Unknown variable kind");
-                        }
+                    SymbolTable.SymbolKind kind = SymbolTable.getKind(val);
+                    if (kind == null) {
+                        throw new RuntimeException("Unknown variable kind");
+                    }
 
-                        switch (kind) {
-                            case ARGUMENT:
-                                outputWriter.writePush("argument", SymbolTable.getIndex(val));
-                                break;
-                            case FIELD:
-                                outputWriter.writePush("this", SymbolTable.getIndex(val));
-                                break;
-                            case LOCAL:
-                                outputWriter.writePush("local", SymbolTable.getIndex(val));
-                                break;
-                            case STATIC:
-                                outputWriter.writePush("static", SymbolTable.getIndex(val));
-                                break;
-                        }
+                    switch (kind) {
+                        case ARGUMENT:
+                            outputWriter.writePush("argument", SymbolTable.getIndex(val));
+                            break;
+                        case FIELD:
+                            outputWriter.writePush("this", SymbolTable.getIndex(val));
+                            break;
+                        case LOCAL:
+                            outputWriter.writePush("local", SymbolTable.getIndex(val));
+                            break;
+                        case STATIC:
+                            outputWriter.writePush("static", SymbolTable.getIndex(val));
+                            break;
                     }
                 }
 
@@ -757,21 +1359,23 @@ public class CompilationEngine implements AutoCloseable {
     }
 
     private void compileSubRoutineCall() throws IOException {
-        StringBuilder functionName = new StringBuilder();
         String identifier = consumeIdentifier();
         char symbol = tokenizer.symbol();
         boolean isMethodCall = false;
+        String calleeClassName;
+        String subroutineName;
         if (symbol == '.') {
             if (subroutineLevelSymbolTable.getVal(identifier) != -1 || classLevelSymbolTable.getVal(identifier) != -1) {
                 isMethodCall = true;
-                String className;
                 int i;
                 if ((i = subroutineLevelSymbolTable.getVal(identifier)) != -1) {
-                    className = subroutineLevelSymbolTable.getClassName(i);
+                    calleeClassName = subroutineLevelSymbolTable.getClassName(i);
                 } else {
                     i = classLevelSymbolTable.getVal(identifier);
-                    className = classLevelSymbolTable.getClassName(i);
+                    calleeClassName = classLevelSymbolTable.getClassName(i);
                 }
+                if (calleeClassName == null)
+                    throw new RuntimeException(identifier + " is not an object, can not call its methods");
 
                 SymbolTable.SymbolKind kind = SymbolTable.getKind(i);
                 switch (kind) {
@@ -788,33 +1392,55 @@ public class CompilationEngine implements AutoCloseable {
                         outputWriter.writePush("static", SymbolTable.getIndex(i));
                         break;
                 }
-
-                functionName.append(className);
             } else {
-                functionName.append(identifier);
+                calleeClassName = identifier;
             }
             consumeSymbol('.');
-            functionName.append(".");
-            functionName.append(consumeIdentifier());
+            subroutineName = consumeIdentifier();
         } else {
-            outputWriter.writePush("pointer", 0);
-            functionName.append(className);
-            functionName.append('.');
-            isMethodCall = true;
-            functionName.append(identifier);
+            calleeClassName = className;
+            subroutineName = identifier;
+        }
+
+        String functionName = calleeClassName + "." + subroutineName;
+        SignatureIndex.Signature signature = null;
+        if (signatureIndex != null && signatureIndex.hasClass(calleeClassName)) {
+            signature = signatureIndex.lookup(calleeClassName, subroutineName);
+            if (signature == null)
+                throw new RuntimeException("Subroutine " + functionName + " could not be found");
+        }
+
+        if (symbol != '.') {
+            //a subroutine of this class, a method of the current object unless it is declared otherwise
+            if (signature == null || signature.kind == KeywordType.METHOD) {
+                if (subroutineKind == KeywordType.FUNCTION)
+                    throw new RuntimeException("Method " + functionName + " can not be called from function");
+                outputWriter.writePush("pointer", 0);
+                isMethodCall = true;
+            }
+        } else if (signature != null) {
+            if (isMethodCall && signature.kind != KeywordType.METHOD)
+                throw new RuntimeException(functionName + " is not a method, it can not be called on an object");
+            if (!isMethodCall && signature.kind == KeywordType.METHOD)
+                throw new RuntimeException(functionName + " is a method, it needs an object");
         }
 
         consumeSymbol('(');
         int numOfArgProvided = compileExpressionList();
         consumeSymbol(')');
 
-        outputWriter.writeCall(functionName.toString(), numOfArgProvided + (isMethodCall ? 1 : 0));
+        if (signature != null && signature.argumentCount != numOfArgProvided)
+            throw new RuntimeException(String.format("Expected %d arguments for %s, found %d",
+                    signature.argumentCount, functionName, numOfArgProvided));
+
+        outputWriter.writeCall(functionName, numOfArgProvided + (isMethodCall ? 1 : 0));
     }
 
     @Override
     public void close() {
+        tokenizer.close();
         try {
-            xmlWriter.close();
+            treeOutput.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,38 @@
+package io.github.hbusul;
+
+/* An error in a source file, printed as file:line:column: message */
+public class Diagnostic {
+    final String fileName;
+    final int line;
+    final int column;
+    final String message;
+
+    Diagnostic(String fileName, int line, int column, String message) {
+        this.fileName = fileName;
+        this.line = line;
+        this.column = column;
+        this.message = message;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /* Lines and columns start from 1 */
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return fileName + ":" + line + ":" + column + ": " + message;
+    }
+}
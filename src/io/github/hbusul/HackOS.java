@@ -0,0 +1,484 @@
+package io.github.hbusul;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/*
+ * The Jack OS for programs run by VMMachine, written in Java on the Hack RAM. A function of the OS named
+ * Class.name is the method Class_name here, it takes and returns the 16 bit values of the vm as ints (0 for
+ * void functions). OS functions the program defines itself are used instead of these, also by the OS:
+ * String.new allocates with the program's Memory.alloc if there is one.
+ *
+ * There is no screen or keyboard hardware: Output prints text to a writer, Keyboard reads from a reader and
+ * echoes what it reads as the OS does, Screen draws into the screen memory map. Errors of the OS functions
+ * print ERR<code> and halt, with the codes of the Jack OS.
+ */
+class HackOS {
+
+    static final int RAM_SIZE = 32768;
+    static final int STATIC_BASE = 16;
+    static final int STATIC_END = 2048; //the vm stack is not in RAM, statics can use the space
+    static final int HEAP_BASE = 2048;
+    static final int HEAP_END = 16384;
+    static final int SCREEN = 16384;
+    static final int KEYBOARD = 24576;
+
+    static final int NEW_LINE = 128;
+    static final int BACKSPACE = 129;
+
+    /* Thrown by Sys.halt and by errors to stop the program */
+    static class Halt extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int errorCode;
+
+        Halt(int errorCode) {
+            super(null, null, false, false);
+            this.errorCode = errorCode;
+        }
+    }
+
+    final short[] ram = new short[RAM_SIZE];
+    private final Reader input;
+    private final Writer output;
+    private VMMachine machine;
+    private VMHeapTracker heap;
+    private int freeList;
+    private boolean black = true;
+
+    HackOS(Reader input, Writer output) {
+        this.input = input;
+        this.output = output;
+        Memory_init();
+    }
+
+    void setMachine(VMMachine machine) {
+        this.machine = machine;
+    }
+
+    void setHeapTracker(VMHeapTracker heap) {
+        this.heap = heap;
+    }
+
+    void flush() {
+        try {
+            output.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int error(int code) {
+        printString("ERR" + code);
+        throw new Halt(code);
+    }
+
+    /* The program's own version of an OS function if it has one */
+    private boolean overridden(String name) {
+        return machine != null && machine.defines(name);
+    }
+
+    // Sys
+
+    int Sys_init() {
+        for (String name : new String[]{"Memory.init", "Math.init", "Screen.init", "Output.init", "Keyboard.init"})
+            if (overridden(name))
+                machine.call(name);
+        machine.call("Main.main");
+        return Sys_halt();
+    }
+
+    int Sys_halt() {
+        throw new Halt(0);
+    }
+
+    int Sys_error(int code) {
+        return error(code);
+    }
+
+    int Sys_wait(int duration) {
+        return duration < 0 ? error(1) : 0; //nothing to wait for without a screen
+    }
+
+    // Math
+
+    int Math_init() {
+        return 0;
+    }
+
+    int Math_abs(int x) {
+        return (short) Math.abs(x);
+    }
+
+    int Math_multiply(int x, int y) {
+        return (short) (x * y);
+    }
+
+    int Math_divide(int x, int y) {
+        return y == 0 ? error(3) : (short) (x / y);
+    }
+
+    int Math_min(int x, int y) {
+        return Math.min(x, y);
+    }
+
+    int Math_max(int x, int y) {
+        return Math.max(x, y);
+    }
+
+    int Math_sqrt(int x) {
+        return x < 0 ? error(4) : (int) Math.sqrt(x);
+    }
+
+    // Memory, a first fit free list of blocks in the heap. A block is [length, next] while it is free and
+    // [length, data...] while it is allocated, the address of the data is returned.
+
+    int Memory_init() {
+        freeList = HEAP_BASE;
+        ram[HEAP_BASE] = (short) (HEAP_END - HEAP_BASE);
+        ram[HEAP_BASE + 1] = 0;
+        return 0;
+    }
+
+    int Memory_peek(int address) {
+        return ram[address];
+    }
+
+    int Memory_poke(int address, int value) {
+        ram[address] = (short) value;
+        return 0;
+    }
+
+    int Memory_alloc(int size) {
+        int address = allocate(size);
+        if (heap != null)
+            heap.allocated(address, size);
+        return address;
+    }
+
+    private int allocate(int size) {
+        if (size <= 0)
+            return error(5);
+        int previous = 0;
+        for (int block = freeList; block != 0; previous = block, block = ram[block + 1]) {
+            int length = ram[block];
+            if (length >= size + 3) { //the rest stays a free block
+                ram[block] = (short) (length - size - 1);
+                int allocated = block + length - size - 1;
+                ram[allocated] = (short) (size + 1);
+                return allocated + 1;
+            }
+            if (length >= size + 1) {
+                if (previous == 0)
+                    freeList = ram[block + 1];
+                else
+                    ram[previous + 1] = ram[block + 1];
+                return block + 1;
+            }
+        }
+        return error(6);
+    }
+
+    int Memory_deAlloc(int object) {
+        if (heap != null)
+            heap.freed(object);
+        int block = object - 1;
+        ram[block + 1] = (short) freeList;
+        freeList = block;
+        return 0;
+    }
+
+    private int alloc(int size) {
+        return overridden("Memory.alloc") ? machine.call("Memory.alloc", size) : Memory_alloc(size);
+    }
+
+    private int deAlloc(int object) {
+        return overridden("Memory.deAlloc") ? machine.call("Memory.deAlloc", object) : Memory_deAlloc(object);
+    }
+
+    // Array
+
+    int Array_new(int size) {
+        return size <= 0 ? error(2) : alloc(size);
+    }
+
+    int Array_dispose(int array) {
+        return deAlloc(array);
+    }
+
+    // String, [maxLength, length, characters...]
+
+    int String_new(int maxLength) {
+        if (maxLength < 0)
+            return error(14);
+        int string = alloc(maxLength + 2);
+        ram[string] = (short) maxLength;
+        ram[string + 1] = 0;
+        return string;
+    }
+
+    int String_dispose(int string) {
+        return deAlloc(string);
+    }
+
+    int String_length(int string) {
+        return ram[string + 1];
+    }
+
+    int String_charAt(int string, int j) {
+        return j < 0 || j >= ram[string + 1] ? error(15) : ram[string + 2 + j];
+    }
+
+    int String_setCharAt(int string, int j, int c) {
+        if (j < 0 || j >= ram[string + 1])
+            return error(16);
+        ram[string + 2 + j] = (short) c;
+        return 0;
+    }
+
+    int String_appendChar(int string, int c) {
+        int length = ram[string + 1];
+        if (length >= ram[string])
+            return error(17);
+        ram[string + 2 + length] = (short) c;
+        ram[string + 1] = (short) (length + 1);
+        return string;
+    }
+
+    int String_eraseLastChar(int string) {
+        if (ram[string + 1] == 0)
+            return error(18);
+        ram[string + 1]--;
+        return 0;
+    }
+
+    int String_intValue(int string) {
+        int length = ram[string + 1];
+        boolean negative = length > 0 && ram[string + 2] == '-';
+        int value = 0;
+        for (int i = negative ? 1 : 0; i < length; i++) {
+            int c = ram[string + 2 + i];
+            if (c < '0' || c > '9')
+                break;
+            value = value * 10 + c - '0';
+        }
+        return (short) (negative ? -value : value);
+    }
+
+    int String_setInt(int string, int value) {
+        String digits = Integer.toString(value);
+        if (digits.length() > ram[string])
+            return error(19);
+        for (int i = 0; i < digits.length(); i++)
+            ram[string + 2 + i] = (short) digits.charAt(i);
+        ram[string + 1] = (short) digits.length();
+        return 0;
+    }
+
+    int String_backSpace() {
+        return BACKSPACE;
+    }
+
+    int String_doubleQuote() {
+        return '"';
+    }
+
+    int String_newLine() {
+        return NEW_LINE;
+    }
+
+    private int newString(int maxLength) {
+        return overridden("String.new") ? machine.call("String.new", maxLength) : String_new(maxLength);
+    }
+
+    private int appendChar(int string, int c) {
+        return overridden("String.appendChar") ? machine.call("String.appendChar", string, c)
+                : String_appendChar(string, c);
+    }
+
+    private int eraseLastChar(int string) {
+        return overridden("String.eraseLastChar") ? machine.call("String.eraseLastChar", string)
+                : String_eraseLastChar(string);
+    }
+
+    private int length(int string) {
+        return overridden("String.length") ? machine.call("String.length", string) : String_length(string);
+    }
+
+    private int charAt(int string, int j) {
+        return overridden("String.charAt") ? machine.call("String.charAt", string, j) : String_charAt(string, j);
+    }
+
+    // Output, text to the writer
+
+    int Output_init() {
+        return 0;
+    }
+
+    int Output_moveCursor(int i, int j) {
+        return i < 0 || i > 22 || j < 0 || j > 63 ? error(20) : 0;
+    }
+
+    int Output_printChar(int c) {
+        try {
+            output.write(c == NEW_LINE ? '\n' : c == BACKSPACE ? '\b' : (char) c);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return 0;
+    }
+
+    int Output_printString(int string) {
+        int length = length(string);
+        for (int i = 0; i < length; i++)
+            Output_printChar(charAt(string, i));
+        return 0;
+    }
+
+    int Output_printInt(int i) {
+        printString(Integer.toString(i));
+        return 0;
+    }
+
+    int Output_println() {
+        return Output_printChar(NEW_LINE);
+    }
+
+    int Output_backSpace() {
+        return Output_printChar(BACKSPACE);
+    }
+
+    private void printString(String text) {
+        for (int i = 0; i < text.length(); i++)
+            Output_printChar(text.charAt(i));
+    }
+
+    // Screen, 512 x 256 pixels, 16 to a word
+
+    int Screen_init() {
+        black = true;
+        return 0;
+    }
+
+    int Screen_clearScreen() {
+        for (int address = SCREEN; address < KEYBOARD; address++)
+            ram[address] = 0;
+        return 0;
+    }
+
+    int Screen_setColor(int color) {
+        black = color != 0;
+        return 0;
+    }
+
+    int Screen_drawPixel(int x, int y) {
+        if (!onScreen(x, y))
+            return error(7);
+        pixel(x, y);
+        return 0;
+    }
+
+    int Screen_drawLine(int x1, int y1, int x2, int y2) {
+        if (!onScreen(x1, y1) || !onScreen(x2, y2))
+            return error(8);
+        int dx = Math.abs(x2 - x1);
+        int dy = Math.abs(y2 - y1);
+        int stepX = x1 < x2 ? 1 : -1;
+        int stepY = y1 < y2 ? 1 : -1;
+        int balance = dx - dy;
+        while (true) {
+            pixel(x1, y1);
+            if (x1 == x2 && y1 == y2)
+                return 0;
+            if (2 * balance > -dy) {
+                balance -= dy;
+                x1 += stepX;
+            }
+            if (2 * balance < dx) {
+                balance += dx;
+                y1 += stepY;
+            }
+        }
+    }
+
+    int Screen_drawRectangle(int x1, int y1, int x2, int y2) {
+        if (!onScreen(x1, y1) || !onScreen(x2, y2) || x1 > x2 || y1 > y2)
+            return error(9);
+        for (int y = y1; y <= y2; y++)
+            for (int x = x1; x <= x2; x++)
+                pixel(x, y);
+        return 0;
+    }
+
+    int Screen_drawCircle(int x, int y, int r) {
+        if (!onScreen(x, y))
+            return error(12);
+        if (r < 0 || r > 181 || !onScreen(x - r, y - r) || !onScreen(x + r, y + r))
+            return error(13);
+        for (int dy = -r; dy <= r; dy++) {
+            int dx = (int) Math.sqrt(r * r - dy * dy);
+            for (int px = x - dx; px <= x + dx; px++)
+                pixel(px, y + dy);
+        }
+        return 0;
+    }
+
+    private static boolean onScreen(int x, int y) {
+        return x >= 0 && x < 512 && y >= 0 && y < 256;
+    }
+
+    private void pixel(int x, int y) {
+        int address = SCREEN + y * 32 + x / 16;
+        int bit = 1 << (x % 16);
+        ram[address] = (short) (black ? ram[address] | bit : ram[address] & ~bit);
+    }
+
+    // Keyboard, the characters of the reader as keys, the end of the input halts the program
+
+    int Keyboard_init() {
+        return 0;
+    }
+
+    int Keyboard_keyPressed() {
+        return ram[KEYBOARD];
+    }
+
+    int Keyboard_readChar() {
+        int c;
+        try {
+            c = input.read();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (c < 0)
+            throw new Halt(0);
+        if (c == '\r')
+            return Keyboard_readChar();
+        c = c == '\n' ? NEW_LINE : c;
+        Output_printChar(c);
+        return c;
+    }
+
+    int Keyboard_readLine(int message) {
+        Output_printString(message);
+        int line = newString(80);
+        for (int c = Keyboard_readChar(); c != NEW_LINE; c = Keyboard_readChar()) {
+            if (c == BACKSPACE) {
+                if (length(line) > 0)
+                    eraseLastChar(line);
+            } else if (length(line) < 80) {
+                appendChar(line, c);
+            }
+        }
+        return line;
+    }
+
+    int Keyboard_readInt(int message) {
+        int line = Keyboard_readLine(message);
+        int value = overridden("String.intValue") ? machine.call("String.intValue", line)
+                : String_intValue(line);
+        deAlloc(line);
+        return value;
+    }
+}
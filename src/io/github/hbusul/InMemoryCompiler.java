@@ -0,0 +1,153 @@
+package io.github.hbusul;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Compiles Jack sources that are in memory to vm code in memory, for services that compile many programs in
+ * one JVM. Nothing is read from or written to disk. Sources are named by the caller, e.g. "Main.jack", the
+ * names are used in the diagnostics and as the keys of the results.
+ *
+ * A compiler is immutable, one instance can be used by any number of threads at once. The tables that do not
+ * depend on the program (OS signatures, keywords and symbols, xml tags) are built once and shared by all
+ * calls, and sources are tokenized straight from their text.
+ */
+public final class InMemoryCompiler {
+
+    /* What the compilation of a set of sources produced */
+    public static final class Result {
+        private final Map<String, String> vmCode;
+        private final Map<String, String> parseTrees;
+        private final List<Diagnostic> diagnostics;
+
+        private Result(Map<String, String> vmCode, Map<String, String> parseTrees, List<Diagnostic> diagnostics) {
+            this.vmCode = Collections.unmodifiableMap(vmCode);
+            this.parseTrees = Collections.unmodifiableMap(parseTrees);
+            this.diagnostics = Collections.unmodifiableList(diagnostics);
+        }
+
+        public boolean hasErrors() {
+            return !diagnostics.isEmpty();
+        }
+
+        /* Every error of every source, in the order of the sources */
+        public List<Diagnostic> getDiagnostics() {
+            return diagnostics;
+        }
+
+        /* The vm code of each source that has no errors, by source name */
+        public Map<String, String> getVmCode() {
+            return vmCode;
+        }
+
+        /* null if the source has errors */
+        public String getVmCode(String sourceName) {
+            return vmCode.get(sourceName);
+        }
+
+        /* The parse tree xml, null unless parse trees were asked for or if the source has errors */
+        public String getParseTree(String sourceName) {
+            return parseTrees.get(sourceName);
+        }
+    }
+
+    private static final PrintStream SILENT = new PrintStream(OutputStream.nullOutputStream());
+
+    private final boolean parseTrees;
+    private final int optimizationLevel;
+
+    public InMemoryCompiler() {
+        this(false, 0);
+    }
+
+    private InMemoryCompiler(boolean parseTrees, int optimizationLevel) {
+        this.parseTrees = parseTrees;
+        this.optimizationLevel = optimizationLevel;
+    }
+
+    /* A compiler that also produces the parse tree xml of each source */
+    public InMemoryCompiler withParseTrees(boolean parseTrees) {
+        return new InMemoryCompiler(parseTrees, optimizationLevel);
+    }
+
+    /* A compiler that runs the passes of an optimization level, 0 to 2 as -O0 to -O2 */
+    public InMemoryCompiler withOptimizationLevel(int optimizationLevel) {
+        if (optimizationLevel < 0 || optimizationLevel >= PassManager.LEVELS.size())
+            throw new IllegalArgumentException("Unknown optimization level " + optimizationLevel);
+        return new InMemoryCompiler(parseTrees, optimizationLevel);
+    }
+
+    public Result compile(String sourceName, CharSequence source) {
+        return compile(Collections.singletonMap(sourceName, source));
+    }
+
+    /* source is UTF-8 */
+    public Result compile(String sourceName, byte[] source) {
+        return compile(sourceName, new String(source, StandardCharsets.UTF_8));
+    }
+
+    public Result compile(String sourceName, Reader source) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[8192];
+        int n;
+        while ((n = source.read(buffer)) > 0)
+            text.append(buffer, 0, n);
+        return compile(sourceName, text);
+    }
+
+    /* Compiles the classes of a program together, calls between them are checked */
+    public Result compile(Map<String, ? extends CharSequence> sources) {
+        try {
+            return compileProgram(sources);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); //the sources and outputs are in memory, there is no I/O to fail
+        }
+    }
+
+    private Result compileProgram(Map<String, ? extends CharSequence> sources) throws IOException {
+        SignatureIndex signatureIndex = SignatureIndex.build(sources);
+        VMProgram program = new VMProgram();
+        LinkedHashMap<String, String> trees = new LinkedHashMap<>();
+        ArrayList<Diagnostic> diagnostics = new ArrayList<>();
+        for (Map.Entry<String, ? extends CharSequence> source : sources.entrySet()) {
+            String sourceName = source.getKey();
+            StringWriter vmOutput = new StringWriter();
+            StringWriter xmlOutput = parseTrees ? new StringWriter() : null;
+            TreeWriter treeOutput = parseTrees ? new BasicXMLWriter(xmlOutput) : TreeWriter.NONE;
+            List<Diagnostic> errors;
+            try (CompilationEngine engine = new CompilationEngine(new JackTokenizer(source.getValue(), sourceName),
+                    signatureIndex, treeOutput, vmOutput)) {
+                engine.compileClass();
+                errors = engine.getDiagnostics();
+            }
+            diagnostics.addAll(errors);
+            if (!errors.isEmpty())
+                continue;
+            program.addFile(sourceName, VMProgram.parse(new BufferedReader(new StringReader(vmOutput.toString())),
+                    sourceName));
+            if (parseTrees)
+                trees.put(sourceName, xmlOutput.toString());
+        }
+
+        if (diagnostics.isEmpty() && optimizationLevel > 0) {
+            PassManager passes = new PassManager();
+            passes.setLog(SILENT);
+            for (String name : PassManager.LEVELS.get(optimizationLevel))
+                passes.add(name);
+            passes.run(program);
+        }
+
+        LinkedHashMap<String, String> vmCode = new LinkedHashMap<>();
+        for (String sourceName : program.getFileNames()) {
+            StringWriter writer = new StringWriter();
+            program.write(sourceName, writer, false);
+            vmCode.put(sourceName, writer.toString());
+        }
+        return new Result(vmCode, trees, diagnostics);
+    }
+}
@@ -0,0 +1,162 @@
+package io.github.hbusul;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Replaces calls to small leaf subroutines with their bodies. A callee can be inlined if it has no locals,
+ * no calls or branches, ends with its only return and only uses constants, its arguments, the fields of
+ * its object and (when inlined into its own class) statics. Arguments are moved to temp 1..7 and the
+ * object of a method is put in pointer 1, so that fields are read through that instead of this.
+ * That is only done where the caller does not use pointer 1 after the call, since calls preserve it.
+ */
+class Inliner {
+    static final int DEFAULT_THRESHOLD = 8;
+
+    private VMProgram program;
+    private int threshold;
+    private HashMap<String, Candidate> candidates;
+
+    private static class Candidate {
+        boolean isMethod;
+        boolean usesStatic;
+        int maxArgument = -1;
+        int[] argumentUses = new int[7];
+        ArrayList<VMCommand> body = new ArrayList<>();
+    }
+
+    Inliner(VMProgram program, int threshold) {
+        this.program = program;
+        this.threshold = threshold;
+    }
+
+    /* Returns the number of calls replaced */
+    int run() {
+        //decide on the original bodies so that the result doesn't depend on the order functions are visited
+        candidates = new HashMap<>();
+        for (VMFunction function : program.getFunctions()) {
+            Candidate candidate = analyze(function);
+            if (candidate != null)
+                candidates.put(function.name, candidate);
+        }
+
+        int inlined = 0;
+        for (VMFunction function : program.getFunctions()) {
+            ArrayList<VMCommand> result = new ArrayList<>();
+            for (int i = 0; i < function.commands.size(); i++) {
+                VMCommand command = function.commands.get(i);
+                if (command.is("call") && inline(function, i, result)) {
+                    inlined++;
+                } else {
+                    result.add(command);
+                }
+            }
+            function.commands = result;
+        }
+        return inlined;
+    }
+
+    private Candidate analyze(VMFunction function) {
+        ArrayList<VMCommand> commands = function.commands;
+        if (function.numberOfLocalVariables != 0 || commands.isEmpty())
+            return null;
+        if (!commands.get(commands.size() - 1).is("return"))
+            return null;
+
+        Candidate candidate = new Candidate();
+        int start = 0;
+        if (commands.size() > 2 && commands.get(0).is("push", "argument", 0) && commands.get(1).is("pop", "pointer", 0)) {
+            candidate.isMethod = true;
+            start = 2;
+        }
+        if (commands.size() - 1 - start > threshold)
+            return null;
+
+        for (int i = start; i < commands.size() - 1; i++) {
+            VMCommand command = commands.get(i);
+            if (command.is("push") || command.is("pop")) {
+                switch (command.arg1) {
+                    case "constant":
+                        break;
+                    case "argument":
+                        if (candidate.isMethod && command.arg2 == 0) {
+                            if (command.is("pop"))
+                                return null;
+                            command = new VMCommand("push", "pointer", 1); //the object itself
+                        } else {
+                            if (command.arg2 + 1 > 7)
+                                return null;
+                            candidate.maxArgument = Math.max(candidate.maxArgument, command.arg2);
+                            candidate.argumentUses[command.arg2]++;
+                            command = new VMCommand(command.command, "temp", command.arg2 + 1);
+                        }
+                        break;
+                    case "this":
+                        if (!candidate.isMethod)
+                            return null;
+                        command = new VMCommand(command.command, "that", command.arg2);
+                        break;
+                    case "pointer":
+                        if (!candidate.isMethod || !command.is("push", "pointer", 0))
+                            return null;
+                        command = new VMCommand("push", "pointer", 1);
+                        break;
+                    case "static":
+                        candidate.usesStatic = true;
+                        break;
+                    default: //local, that, temp
+                        return null;
+                }
+            } else if (command.is("call") || command.is("return") || command.is("label") ||
+                    command.is("goto") || command.is("if-goto") || command.is("function")) {
+                return null;
+            }
+            candidate.body.add(command);
+        }
+        return candidate;
+    }
+
+    private boolean inline(VMFunction caller, int index, ArrayList<VMCommand> result) {
+        VMCommand call = caller.commands.get(index);
+        Candidate candidate = candidates.get(call.arg1);
+        if (candidate == null || candidate.maxArgument >= call.arg2 || call.arg2 > 7)
+            return false;
+        if (candidate.isMethod && (call.arg2 == 0 || isThatUsedAfter(caller, index)))
+            return false;
+        if (candidate.usesStatic && !caller.getClassName().equals(call.arg1.substring(0, call.arg1.indexOf('.'))))
+            return false;
+
+        int first = candidate.isMethod ? 1 : 0;
+        int last = call.arg2 - 1;
+        //the only argument is already on top of the stack if the body starts by pushing it, with more arguments
+        //the ones below it would have to be popped first
+        boolean forward = !candidate.isMethod && last == first && candidate.argumentUses[last] == 1 &&
+                !candidate.body.isEmpty() && candidate.body.get(0).is("push", "temp", last + 1);
+
+        //the inlined code is attributed to the line of the call
+        for (int k = last; k >= first; k--) {
+            if (!(forward && k == last))
+                result.add(new VMCommand("pop", "temp", k + 1).atLine(call.line));
+        }
+        if (candidate.isMethod)
+            result.add(new VMCommand("pop", "pointer", 1).atLine(call.line));
+        for (VMCommand command : candidate.body.subList(forward ? 1 : 0, candidate.body.size()))
+            result.add(command.atLine(call.line));
+        return true;
+    }
+
+    /*
+     * Whether the caller reads pointer 1 after the call without setting it first. Code after a label never
+     * relies on pointer 1 being set before, so the scan stops there.
+     */
+    private boolean isThatUsedAfter(VMFunction caller, int index) {
+        for (int i = index + 1; i < caller.commands.size(); i++) {
+            VMCommand command = caller.commands.get(i);
+            if (command.is("push", "that") || command.is("pop", "that") || command.is("push", "pointer", 1))
+                return true;
+            if (command.is("pop", "pointer", 1) || command.is("label") || command.is("goto") || command.is("return"))
+                return false;
+        }
+        return false;
+    }
+}
@@ -1,17 +1,27 @@
 package io.github.hbusul;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
+import java.nio.file.Path;
+import java.util.*;
 
 public class JackCompiler {
 
+    /* Subroutine signatures of the classes in a directory are kept here between builds */
+    private static final String SIGNATURE_CACHE = ".jacksignatures";
+
     public static void main(String[] args) {
         if (args.length == 0 || args[0].equals("help")) {
             usage();
             return;
         }
+        if (args[0].equals("convert")) {
+            convert(args);
+            return;
+        }
+        if (args[0].equals("run")) {
+            run(args);
+            return;
+        }
 
         String input = args[0];
         File file = new File(input);
@@ -21,87 +31,275 @@ public class JackCompiler {
             return;
         }
 
-        ArrayList<String> inputs = new ArrayList<>();
-
-        if (file.isDirectory()) {
-            File[] listOfFiles = file.listFiles();
-            if (listOfFiles != null)
-                for (File f : listOfFiles) {
-                    if (f.getName().endsWith(".jack"))
-                        inputs.add(f.getAbsolutePath());
+        boolean recursive = false;
+        boolean treeShake = false;
+        boolean printTimes = false;
+        boolean streaming = false;
+        boolean binaryDumps = false;
+        boolean sourceMaps = false;
+        int stackBudget = 0;
+        int inlineThreshold = 0;
+        int optimizationLevel = 0;
+        List<String> passNames = null;
+        ArrayList<String> includes = new ArrayList<>();
+        ArrayList<String> excludes = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-r")) {
+                recursive = true;
+            } else if (args[i].startsWith("-include=")) {
+                includes.add(args[i].substring(9));
+            } else if (args[i].startsWith("-exclude=")) {
+                excludes.add(args[i].substring(9));
+            } else if (args[i].equals("-treeshake")) {
+                treeShake = true;
+            } else if (args[i].equals("-inline")) {
+                inlineThreshold = Inliner.DEFAULT_THRESHOLD;
+            } else if (args[i].startsWith("-inline=")) {
+                inlineThreshold = Integer.parseInt(args[i].substring(8));
+            } else if (args[i].matches("-O[0-2]")) {
+                optimizationLevel = args[i].charAt(2) - '0';
+            } else if (args[i].startsWith("-passes=")) {
+                passNames = Arrays.asList(args[i].substring(8).split(","));
+                if (!PassManager.PASSES.containsAll(passNames)) {
+                    System.out.println("Unknown pass, the passes are " + String.join(",", PassManager.PASSES));
+                    return;
                 }
-        } else {
-            inputs.add(file.getAbsolutePath());
+            } else if (args[i].equals("-time")) {
+                printTimes = true;
+            } else if (args[i].equals("-stream")) {
+                streaming = true;
+            } else if (args[i].equals("-binary")) {
+                binaryDumps = true;
+            } else if (args[i].equals("-map")) {
+                sourceMaps = true;
+            } else if (args[i].equals("-stack")) {
+                stackBudget = StackAnalyzer.HACK_STACK_SIZE;
+            } else if (args[i].startsWith("-stack=")) {
+                stackBudget = Integer.parseInt(args[i].substring(7));
+            } else {
+                usage();
+                return;
+            }
         }
 
-        if (args.length == 1) {
-            for (String i : inputs) {
-                System.out.printf("Compiling %s\n", i);
-                try (CompilationEngine engine = new CompilationEngine(i)) {
-                    engine.compileClass();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        if (streaming && (treeShake || inlineThreshold > 0 || optimizationLevel > 0 || passNames != null)) {
+            System.out.println("Optimizations need the whole program, they can not be used with -stream");
+            return;
+        }
+        if (streaming && stackBudget > 0) {
+            System.out.println("The stack analysis needs the whole program, it can not be used with -stream");
+            return;
+        }
+
+        //every directory is a program of its own
+        TreeMap<Path, List<String>> packages = new TreeMap<>();
+        try {
+            if (file.isDirectory()) {
+                SourceTree tree = new SourceTree(file.toPath(), recursive);
+                for (String glob : includes)
+                    tree.include(glob);
+                for (String glob : excludes)
+                    tree.exclude(glob);
+                packages = tree.findPackages();
+            } else {
+                packages.put(file.getAbsoluteFile().getParentFile().toPath(),
+                        Collections.singletonList(file.getAbsolutePath()));
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (packages.isEmpty())
+            System.out.println("No Jack files found");
+
+        int errorCount = 0;
+        for (Map.Entry<Path, List<String>> entry : packages.entrySet()) {
+            String cacheFileName = file.isDirectory() ? entry.getKey().resolve(SIGNATURE_CACHE).toString() : null;
+            Pipeline pipeline = new Pipeline(entry.getValue(), cacheFileName);
+            pipeline.setPasses(passes(optimizationLevel, passNames, inlineThreshold, treeShake));
+            pipeline.setStreaming(streaming);
+            pipeline.setBinaryDumps(binaryDumps);
+            pipeline.setSourceMaps(sourceMaps);
+            pipeline.setStackBudget(stackBudget);
             try {
-                dumpTokens(inputs);
+                pipeline.run();
             } catch (IOException e) {
                 e.printStackTrace();
+                continue;
             }
+            if (printTimes)
+                pipeline.printTimes();
+            errorCount += pipeline.getErrorCount();
         }
-
+        if (errorCount > 0)
+            System.exit(1);
     }
 
-    private static void usage() {
-        System.out.println("usage: JackCompiler input OPTIONS");
-        System.out.println("input can be a file or a directory");
+    /*
+     * convert input.jkt [output.xml] [-depth=n] - writes a binary dump back in the xml format, with -depth only the
+     * elements down to depth n, e.g. 2 for the variables and subroutine declarations of a class
+     */
+    private static void convert(String[] args) {
+        ArrayList<String> files = new ArrayList<>();
+        int depth = Integer.MAX_VALUE;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("-depth="))
+                depth = Integer.parseInt(args[i].substring(7));
+            else
+                files.add(args[i]);
+        }
+        if (files.isEmpty() || files.size() > 2 || !files.get(0).endsWith(".jkt")) {
+            usage();
+            return;
+        }
+        String input = files.get(0);
+        String output = files.size() == 2 ? files.get(1) : input.substring(0, input.length() - 4) + ".xml";
+        try (BinaryTreeReader reader = BinaryTreeReader.read(input);
+             BasicXMLWriter xmlWriter = new BasicXMLWriter(new ChannelWriter(output))) {
+            reader.setMaxDepth(depth);
+            reader.writeTo(xmlWriter);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
-    private static void dumpTokens(List<String> fileNames) throws IOException {
-        for (String fileName : fileNames) {
-            String outputFileName = fileName.substring(0, fileName.length() - 5) + "T.xml";
-            BasicXMLWriter xmlWriter = new BasicXMLWriter(new BufferedWriter(new FileWriter(outputFileName)));
-            xmlWriter.openTag("tokens");
-            try (JackTokenizer tokenizer = new JackTokenizer(fileName)) {
-                while (tokenizer.hasMoreTokens()) {
-                    tokenizer.advance();
-                    TokenType tokenType = tokenizer.getTokenType();
-                    switch (tokenType) {
-                        case KEYWORD:
-                            xmlWriter.openTag("keyword");
-                            xmlWriter.writeValue(tokenizer.keyword().toString().toLowerCase(Locale.US));
-                            xmlWriter.closeTag("keyword");
+    /*
+     * run input [-input=file] [-interpret] [-profile] [-allocations] [-time] - runs the .vm files of a directory,
+     * or one .vm file. The Jack lines of a .vm file are read from its source map if it has one.
+     */
+    private static void run(String[] args) {
+        if (args.length < 2) {
+            usage();
+            return;
+        }
+        File file = new File(args[1]);
+        String inputFile = null;
+        boolean interpret = false;
+        boolean profile = false;
+        boolean trackHeap = false;
+        boolean printTimes = false;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("-input=")) {
+                inputFile = args[i].substring(7);
+            } else if (args[i].equals("-interpret")) {
+                interpret = true;
+            } else if (args[i].equals("-profile")) {
+                profile = true;
+            } else if (args[i].equals("-allocations")) {
+                trackHeap = true;
+            } else if (args[i].equals("-time")) {
+                printTimes = true;
+            } else {
+                usage();
+                return;
+            }
+        }
+        File[] vmFiles = file.isDirectory() ? file.listFiles((dir, name) -> name.endsWith(".vm")) : new File[]{file};
+        if (vmFiles == null || vmFiles.length == 0 || !vmFiles[0].exists()) {
+            System.out.println("No vm files found");
+            return;
+        }
+        Arrays.sort(vmFiles);
 
-                            break;
-                        case SYMBOL:
-                            xmlWriter.openTag("symbol");
-                            xmlWriter.writeValue(tokenizer.symbol() + "");
-                            xmlWriter.closeTag("symbol");
-                            break;
-                        case INT_CONST:
-                            xmlWriter.openTag("integerConstant");
-                            xmlWriter.writeValue(tokenizer.intVal() + "");
-                            xmlWriter.closeTag("integerConstant");
-                            break;
-                        case STRING_CONST:
-                            xmlWriter.openTag("stringConstant");
-                            xmlWriter.writeValue(tokenizer.stringVal());
-                            xmlWriter.closeTag("stringConstant");
-                            break;
-                        case IDENTIFIER:
-                            xmlWriter.openTag("identifier");
-                            xmlWriter.writeValue(tokenizer.identifier());
-                            xmlWriter.closeTag("identifier");
-                            break;
+        int errorCode;
+        Writer output = new BufferedWriter(new OutputStreamWriter(System.out)); //not closed, it is System.out
+        try (Reader input = inputFile != null ? new FileReader(inputFile) : new InputStreamReader(System.in)) {
+            long start = System.nanoTime();
+            VMProgram program = new VMProgram();
+            for (File vmFile : vmFiles) {
+                int[] sourceLines = null;
+                File map = new File(vmFile.getPath() + ".map");
+                if (map.exists()) {
+                    try (BufferedReader reader = new BufferedReader(new FileReader(map))) {
+                        sourceLines = SourceMapWriter.readLines(reader);
                     }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                try (BufferedReader reader = new BufferedReader(new FileReader(vmFile))) {
+                    program.addFile(vmFile.getName(), VMProgram.parse(reader, vmFile.getName(), sourceLines));
+                }
             }
-            xmlWriter.closeTag("tokens");
-            xmlWriter.close();
+            VMMachine machine = new VMMachine(program, input, output, interpret, profile, trackHeap);
+            long loaded = System.nanoTime();
+            try {
+                errorCode = machine.run();
+            } finally {
+                output.flush();
+                if (machine.getProfiler() != null) {
+                    System.out.println();
+                    machine.getProfiler().printReport(System.out);
+                }
+                if (machine.getHeapTracker() != null) {
+                    System.out.println();
+                    machine.getHeapTracker().printReport(System.out);
+                }
+            }
+            if (printTimes)
+                System.out.printf("%nloaded in %d ms, ran in %d ms%n", (loaded - start) / 1000000,
+                        (System.nanoTime() - loaded) / 1000000);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } catch (RuntimeException e) {
+            System.out.println();
+            System.out.println("Runtime error: " + e.getMessage());
+            System.exit(1);
+            return;
         }
+        if (errorCode != 0)
+            System.exit(1);
     }
 
+    /* The passes of a level or of -passes, -inline goes first and -treeshake last if they are not listed */
+    private static PassManager passes(int level, List<String> passNames, int inlineThreshold, boolean treeShake) {
+        PassManager passes = new PassManager();
+        if (inlineThreshold > 0)
+            passes.setInlineThreshold(inlineThreshold);
+        List<String> names = passNames != null ? passNames : PassManager.LEVELS.get(level);
+        if (inlineThreshold > 0 && !names.contains("inline"))
+            passes.add("inline");
+        for (String name : names)
+            passes.add(name);
+        if (treeShake && !names.contains("treeshake"))
+            passes.add("treeshake");
+        return passes;
+    }
 
+    private static void usage() {
+        System.out.println("usage: JackCompiler input OPTIONS");
+        System.out.println("       JackCompiler convert input.jkt [output.xml] [-depth=n]");
+        System.out.println("       JackCompiler run input [-input=file] [-interpret] [-profile] [-allocations] " +
+                "[-time]");
+        System.out.println("input can be a file or a directory");
+        System.out.println("OPTIONS:");
+        System.out.println("  -r              compile the directories under input too, each one as a program");
+        System.out.println("  -include=glob   only compile the files matching glob, relative to input");
+        System.out.println("  -exclude=glob   skip the files and directories matching glob, relative to input");
+        System.out.println("  -inline[=size]  inline calls to small leaf subroutines of the program, " +
+                "up to size commands (default " + Inliner.DEFAULT_THRESHOLD + ")");
+        System.out.println("  -treeshake      remove the functions that can not be reached from " +
+                TreeShaker.ENTRY_POINT);
+        System.out.println("  -O0, -O1, -O2   optimization level, -O1 runs the peephole passes, -O2 also " +
+                "inlines, removes self tail calls, hoists loop invariants and reuses repeated expressions " +
+                "(default -O0)");
+        System.out.println("  -passes=a,b     run these passes in this order instead of a level, out of " +
+                String.join(",", PassManager.PASSES));
+        System.out.println("  -stream         compile one subroutine at a time straight to the outputs, " +
+                "for very large classes");
+        System.out.println("  -binary         also write the parse trees and tokens in the compact binary format " +
+                "(.jkt and T.jkt)");
+        System.out.println("  -map            write a source map next to each .vm file (.vm.map), " +
+                "vm lines to Jack lines and subroutines");
+        System.out.println("  -stack[=budget] print the stack use of each subroutine and of the deepest chain of " +
+                "calls, and what is over budget words (default " + StackAnalyzer.HACK_STACK_SIZE + ")");
+        System.out.println("  -time           print the time spent in each stage of the compilation and " +
+                "in each pass");
+        System.out.println("run runs the .vm files of input, a directory or a file, with the OS built in:");
+        System.out.println("  -input=file     what Keyboard reads, instead of the standard input");
+        System.out.println("  -interpret      interpret the vm code instead of translating it to JVM bytecode");
+        System.out.println("  -profile        print the calls and vm instructions of each function and the trips " +
+                "of each loop");
+        System.out.println("  -allocations    print the heap allocations by the site that made them and the " +
+                "blocks never freed");
+        System.out.println("  -time           print the time spent loading and running the program");
+    }
 }
@@ -1,27 +1,80 @@
 package io.github.hbusul;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Locale;
 
 class JackTokenizer implements java.lang.AutoCloseable {
 
-    private BufferedReader reader;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String SYMBOLS = "(){}[].,;+-[]*/&|<>=~";
+    private static final String[] SYMBOL_TOKENS = new String[128]; //null if the character is not a symbol
+    private static final HashMap<String, KeywordType> KEYWORDS = new HashMap<>();
+
+    static {
+        for (char c : SYMBOLS.toCharArray())
+            SYMBOL_TOKENS[c] = String.valueOf(c);
+        for (KeywordType keywordType : KeywordType.values())
+            KEYWORDS.put(keywordType.name().toLowerCase(Locale.US), keywordType);
+    }
+
+    private Reader reader;
     private String currentToken;
     private TokenType currentTokenType;
     private KeywordType currentKeywordType;
-    private static final String SYMBOLS = "(){}[].,;+-[]*/&|<>=~";
     private String inputFileName;
 
     private String savedToken;
     private TokenType savedTokenType;
     private KeywordType savedKeywordType;
 
+    /*
+     * The source is read in blocks into buffer, buffer[next] is the next character. Characters before
+     * tokenStart, or before keep while there is a mark, are dropped when the buffer is refilled.
+     */
+    private char[] buffer;
+    private int next;
+    private int limit;
+    private int tokenStart;
+    private int keep = -1;
+    private int bufferOffset; //source offset of buffer[0]
+    private int savedNext; //source offset
+
+    /*
+     * A token only records its source offset. Newlines can only be in whitespace and comments, which are
+     * scanned anyway, the offsets of the line starts are collected there and lines are found by binary search
+     * when a position is asked for. Only the position of the current or the marked token is asked for, so a
+     * source that is read in blocks forgets the lines before them and keeps a few at a time.
+     */
+    private int tokenOffset;
+    private int savedTokenOffset;
+    private int[] lineStarts = new int[256];
+    private int lineCount = 1;
+    private int firstLine = 1; //line of lineStarts[0]
 
+
+    /* Reads a source file, in UTF-8 like the outputs are written */
     JackTokenizer(String fileName) throws FileNotFoundException {
-        reader = new BufferedReader(new FileReader(fileName));
+        this(new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8), fileName);
+    }
+
+    /* Tokenizes text that is already in memory, fileName is only used to name the input */
+    JackTokenizer(CharSequence source, String fileName) {
+        buffer = source.toString().toCharArray();
+        limit = buffer.length;
+        this.inputFileName = fileName;
+    }
+
+    /* Reads the source from reader, fileName is only used to name the input */
+    JackTokenizer(Reader source, String fileName) {
+        reader = source;
+        buffer = new char[BUFFER_SIZE];
         currentToken = null;
         currentTokenType = null;
         this.inputFileName = fileName;
@@ -31,74 +84,184 @@ class JackTokenizer implements java.lang.AutoCloseable {
         return inputFileName;
     }
 
+    /*
+     * For a source that is a part of a file: the part starts at offset of the file, on line, and that line
+     * starts at lineStart. Positions are then those in the file. Called before the first token is read.
+     */
+    void startAt(int offset, int line, int lineStart) {
+        bufferOffset = offset;
+        lineStarts[0] = lineStart;
+        firstLine = line;
+    }
+
+    /* Source offset of the current token */
+    int getOffset() {
+        return tokenOffset;
+    }
+
+    /* Line of the current token, lines and columns start from 1 */
+    int getLine() {
+        return lineIndex(tokenOffset) + firstLine;
+    }
+
+    /* Column of the current token */
+    int getColumn() {
+        return tokenOffset - lineStarts[lineIndex(tokenOffset)] + 1;
+    }
+
+    /* Index in lineStarts of the line of a source offset that has already been read */
+    private int lineIndex(int offset) {
+        int low = 0;
+        int high = lineCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (lineStarts[middle] <= offset)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    /* Drops the line starts before the line of the current token, and of the marked one */
+    private void dropLines() {
+        int drop = lineIndex(keep >= 0 ? Math.min(tokenOffset, savedTokenOffset) : tokenOffset);
+        if (drop == 0)
+            return;
+        System.arraycopy(lineStarts, drop, lineStarts, 0, lineCount - drop);
+        lineCount -= drop;
+        firstLine += drop;
+    }
+
+    /* Called after a newline is consumed, a reset can make the same newline pass twice */
+    private void newLine() {
+        int start = bufferOffset + next;
+        if (start <= lineStarts[lineCount - 1])
+            return;
+        if (lineCount == lineStarts.length)
+            lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+        lineStarts[lineCount++] = start;
+    }
+
+    /* Reads more of the source, returns false at the end */
+    private boolean fill() throws IOException {
+        if (reader == null)
+            return false; //all of the source is in the buffer
+        int from = keep >= 0 ? Math.min(keep, tokenStart) : tokenStart;
+        if (from > 0) {
+            System.arraycopy(buffer, from, buffer, 0, limit - from);
+            limit -= from;
+            next -= from;
+            tokenStart -= from;
+            if (keep >= 0)
+                keep -= from;
+            bufferOffset += from;
+            dropLines();
+        }
+        if (limit == buffer.length)
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        int n = reader.read(buffer, limit, buffer.length - limit);
+        if (n <= 0)
+            return false;
+        limit += n;
+        return true;
+    }
+
     boolean hasMoreTokens() throws IOException {
-        int c = ' ';
-        while (c == ' ' || c == '\r' || c == '\t' || c == '\n' || c == '/') {
-            if (c == '/') {
-                reader.reset();
-                reader.mark(2);
-                reader.read();
-                char b = (char) reader.read();
+        while (true) {
+            tokenStart = next;
+            if (next == limit && !fill())
+                return false;
+            char c = buffer[next];
+            if (c == '\n') {
+                next++;
+                newLine();
+            } else if (c == ' ' || c == '\t' || c == '\r') {
+                next++;
+            } else if (c == '/') {
+                if (next + 1 == limit && !fill())
+                    return true; //a lone '/' at the end
+                char b = buffer[next + 1];
                 if (b == '/') {
-                    reader.readLine();
-                }else if(b == '*'){
-                    b = (char)reader.read();
-                    char b2 = (char) reader.read();
-                    while(b != '*' || b2 != '/'){
-                        b = b2;
-                        b2 = (char)reader.read();
+                    next += 2;
+                    while (true) {
+                        tokenStart = next; //comments are not kept in the buffer
+                        if (next == limit && !fill())
+                            return false;
+                        c = buffer[next];
+                        if (c == '\n' || c == '\r')
+                            break;
+                        next++;
+                    }
+                } else if (b == '*') {
+                    next += 2;
+                    boolean star = false;
+                    while (true) {
+                        tokenStart = next;
+                        if (next == limit && !fill())
+                            return false; //an unterminated comment ends the input
+                        c = buffer[next++];
+                        if (c == '/' && star)
+                            break;
+                        star = c == '*';
+                        if (c == '\n')
+                            newLine();
                     }
                 } else {
-                    reader.reset();
                     return true;
                 }
+            } else {
+                return true;
             }
-            reader.mark(1);
-            c = reader.read();
         }
-        reader.reset();
-        return c != -1;
     }
 
     void advance() throws IOException {
-        StringBuilder tokenBuilder = new StringBuilder();
-        int c = reader.read();
-        //Integer Const
-        if (c <= '9' && c >= '0') {
-            while (c <= '9' && c >= '0') {
-                tokenBuilder.append(c - '0');
-                reader.mark(1);
-                c = reader.read();
-            }
-            reader.reset();
+        tokenStart = next;
+        tokenOffset = bufferOffset + next;
+        if (next == limit && !fill())
+            throw new RuntimeException("Unexpected end of file");
+        char c = buffer[next++];
+        if (c <= '9' && c >= '0') { //Integer Const
+            while ((next < limit || fill()) && buffer[next] <= '9' && buffer[next] >= '0')
+                next++;
+            currentToken = new String(buffer, tokenStart, next - tokenStart);
             currentTokenType = TokenType.INT_CONST;
         } else if (c == '"') { //String const
-            c = reader.read(); //we do not want the mark
-            while (c != '"') {
-                tokenBuilder.append((char) c);
-                c = reader.read();
+            while (true) {
+                if (next == limit && !fill())
+                    throw new RuntimeException("Unterminated string constant");
+                c = buffer[next++];
+                if (c == '"')
+                    break;
+                if (c == '\n') {
+                    newLine();
+                    throw new RuntimeException("Unterminated string constant");
+                }
             }
+            currentToken = new String(buffer, tokenStart + 1, next - tokenStart - 2);
             currentTokenType = TokenType.STRING_CONST;
-        } else if (SYMBOLS.contains((char) c + "")) {
-            tokenBuilder.append((char) c);
+        } else if (c < 128 && SYMBOL_TOKENS[c] != null) {
+            currentToken = SYMBOL_TOKENS[c];
             currentTokenType = TokenType.SYMBOL;
-        } else {
-            while ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_') {
-                tokenBuilder.append((char) c);
-                reader.mark(1);
-                c = reader.read();
+        } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_') {
+            while (next < limit || fill()) {
+                c = buffer[next];
+                if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'))
+                    break;
+                next++;
             }
-            reader.reset();
-
-            currentToken = tokenBuilder.toString();
-            if (isKeyword(currentToken)) {
-                this.currentTokenType = TokenType.KEYWORD;
+            currentToken = new String(buffer, tokenStart, next - tokenStart);
+            KeywordType keywordType = KEYWORDS.get(currentToken);
+            if (keywordType != null) {
+                currentKeywordType = keywordType;
+                currentTokenType = TokenType.KEYWORD;
             } else {
-                this.currentTokenType = TokenType.IDENTIFIER;
+                currentTokenType = TokenType.IDENTIFIER;
             }
+        } else {
+            throw new RuntimeException("Unexpected character '" + c + "'");
         }
-
-        currentToken = tokenBuilder.toString();
     }
 
     KeywordType keyword() {
@@ -121,29 +284,28 @@ class JackTokenizer implements java.lang.AutoCloseable {
         return currentToken;
     }
 
-    private boolean isKeyword(String token) {
-        for (KeywordType keywordType : KeywordType.values()) {
-            String name = keywordType.name().toLowerCase(Locale.US);
-            if (name.equals(token)) {
-                currentKeywordType = keywordType;
-                return true;
-            }
-        }
-        return false;
-    }
-
-    void mark() throws IOException {
+    /* Saves the current token and position for one reset, to look ahead */
+    void mark() {
         savedKeywordType = currentKeywordType;
         savedToken = currentToken;
         savedTokenType = currentTokenType;
-        reader.mark(100);
+        savedTokenOffset = tokenOffset;
+        savedNext = bufferOffset + next;
+        keep = next;
+    }
+
+    /* Drops the mark, for a look ahead that is kept */
+    void unmark() {
+        keep = -1;
     }
 
-    void reset() throws IOException {
+    void reset() {
         currentKeywordType = savedKeywordType;
         currentToken = savedToken;
         currentTokenType = savedTokenType;
-        reader.reset();
+        tokenOffset = savedTokenOffset;
+        next = savedNext - bufferOffset;
+        keep = -1;
     }
 
     TokenType getTokenType() {
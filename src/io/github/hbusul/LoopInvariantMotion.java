@@ -0,0 +1,239 @@
+package io.github.hbusul;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Moves the expressions of a loop whose value can not change while it runs in front of the loop. A while
+ * loop is compiled as
+ *     goto TEST, label BODY, statements, label TEST, condition, if-goto BODY
+ * a loop is any label with a jump back to it, entered only by falling into it or by the goto right before.
+ * The value of a hoisted expression is kept in a new local of the function.
+ *
+ * An expression is a run of pushes and pure operations that leaves one value. It is invariant when nothing
+ * it reads is written in the loop: locals, arguments and pointers by a pop, statics, temps and the memory
+ * behind this and that also by any other call or pop to this or that in the loop. Math.multiply, Math.min,
+ * Math.max and Math.abs of the OS are the pure calls, Math.divide is not moved since it can fail.
+ */
+class LoopInvariantMotion {
+
+    private static final List<String> OPERATIONS = Arrays.asList("neg", "not", "add", "sub", "and", "or", "eq",
+            "gt", "lt");
+    private static final List<String> PURE_CALLS = Arrays.asList("Math.multiply", "Math.min", "Math.max",
+            "Math.abs");
+
+    /* Commands start..end of the loop leave one value */
+    private static class Expression {
+        int start;
+        int end;
+        boolean invariant;
+        boolean constant = true; //only constants, left to the peephole pass
+        boolean operation;
+        Expression parent;
+    }
+
+    private final VMProgram program;
+    private int hoisted;
+    private int firstNewLocal; //locals from here on hold hoisted values
+
+    LoopInvariantMotion(VMProgram program) {
+        this.program = program;
+    }
+
+    /* Returns the number of expressions moved out of loops */
+    int run() {
+        for (VMFunction function : program.getFunctions()) {
+            firstNewLocal = function.numberOfLocalVariables;
+            while (hoistOne(function)) {
+                //positions changed, find the loops again
+            }
+        }
+        return hoisted;
+    }
+
+    /* Hoists the invariants of the innermost loop that has some, returns false if no loop has any */
+    private boolean hoistOne(VMFunction function) {
+        ArrayList<VMCommand> commands = function.commands;
+        HashMap<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < commands.size(); i++)
+            if (commands.get(i).is("label"))
+                labels.put(commands.get(i).arg1, i);
+
+        HashMap<Integer, Integer> backJumps = new HashMap<>(); //label position to the last jump back to it
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.is("goto") || command.is("if-goto")) {
+                Integer target = labels.get(command.arg1);
+                if (target != null && target < i)
+                    backJumps.put(target, i);
+            }
+        }
+        ArrayList<int[]> loops = new ArrayList<>();
+        for (Integer start : backJumps.keySet())
+            loops.add(new int[]{start, backJumps.get(start)});
+        loops.sort((a, b) -> a[1] - a[0] != b[1] - b[0] ? (a[1] - a[0]) - (b[1] - b[0]) : a[0] - b[0]);
+
+        for (int[] loop : loops) {
+            int entry = entry(commands, labels, loop[0], loop[1]);
+            if (entry >= 0 && hoist(function, entry, loop[0], loop[1]))
+                return true;
+        }
+        return false;
+    }
+
+    /* Where the hoisted code goes, -1 if the loop can be entered some other way */
+    private static int entry(ArrayList<VMCommand> commands, HashMap<String, Integer> labels, int start, int end) {
+        int entryJump = -1;
+        for (int i = 0; i < commands.size(); i++) {
+            if (i >= start && i <= end)
+                continue;
+            VMCommand command = commands.get(i);
+            if (command.is("goto") || command.is("if-goto")) {
+                Integer target = labels.get(command.arg1);
+                if (target != null && target >= start && target <= end) {
+                    if (entryJump >= 0 || i != start - 1 || !command.is("goto"))
+                        return -1;
+                    entryJump = i;
+                }
+            }
+        }
+        if (entryJump >= 0)
+            return entryJump;
+        if (start > 0 && (commands.get(start - 1).is("goto") || commands.get(start - 1).is("return")))
+            return -1; //never entered
+        return start;
+    }
+
+    private boolean hoist(VMFunction function, int entry, int start, int end) {
+        ArrayList<VMCommand> commands = function.commands;
+        HashMap<String, Integer> written = new HashMap<>(); //number of pops to each slot
+        boolean memoryWritten = false;
+        for (int i = start; i <= end; i++) {
+            VMCommand command = commands.get(i);
+            if (command.is("pop")) {
+                written.merge(command.arg1 + " " + command.arg2, 1, Integer::sum);
+                if (command.arg1.equals("this") || command.arg1.equals("that"))
+                    memoryWritten = true;
+            } else if (command.is("call") && !isPure(command)) {
+                memoryWritten = true;
+            }
+        }
+
+        ArrayList<Expression> found = new ArrayList<>();
+        ArrayList<Expression> stack = new ArrayList<>();
+        for (int i = start; i <= end; i++) {
+            VMCommand command = commands.get(i);
+            int operands = -1;
+            if (command.is("push")) {
+                operands = 0;
+            } else if (command.is("neg") || command.is("not")) {
+                operands = 1;
+            } else if (OPERATIONS.contains(command.command)) {
+                operands = 2;
+            } else if (command.is("call") && isPure(command)) {
+                operands = command.arg2;
+            }
+            if (operands < 0 || operands > stack.size()) {
+                stack.clear();
+                continue;
+            }
+
+            Expression expression = new Expression();
+            expression.start = i;
+            expression.end = i;
+            if (operands == 0) {
+                expression.invariant = isInvariant(command, written, memoryWritten);
+                expression.constant = command.arg1.equals("constant");
+            } else {
+                expression.invariant = true;
+                expression.operation = true;
+                for (int k = 0; k < operands; k++) {
+                    Expression operand = stack.remove(stack.size() - 1);
+                    operand.parent = expression;
+                    expression.start = operand.start;
+                    expression.invariant &= operand.invariant;
+                    expression.constant &= operand.constant;
+                }
+            }
+            stack.add(expression);
+            found.add(expression);
+        }
+
+        ArrayList<Expression> hoistable = new ArrayList<>();
+        for (Expression expression : found) {
+            if (expression.invariant && expression.operation && !expression.constant &&
+                    (expression.parent == null || !expression.parent.invariant))
+                hoistable.add(expression);
+        }
+        if (hoistable.isEmpty())
+            return false;
+        hoistable.sort((a, b) -> a.start - b.start);
+
+        //the same expression more than once in the loop is computed once
+        HashMap<String, Integer> locals = new HashMap<>();
+        ArrayList<VMCommand> preheader = new ArrayList<>();
+        ArrayList<VMCommand> body = new ArrayList<>();
+        int next = start;
+        for (Expression expression : hoistable) {
+            body.addAll(commands.subList(next, expression.start));
+            List<VMCommand> code = commands.subList(expression.start, expression.end + 1);
+            String key = code.toString();
+            Integer local = locals.get(key);
+            VMCommand last = commands.get(expression.end);
+            if (local == null) {
+                //a value hoisted out of an inner loop moves on with its local instead of being copied
+                VMCommand pop = expression.end < end ? commands.get(expression.end + 1) : null;
+                boolean moves = pop != null && pop.is("pop", "local") && pop.arg2 >= firstNewLocal &&
+                        written.get("local " + pop.arg2) == 1;
+                local = moves ? pop.arg2 : function.numberOfLocalVariables++;
+                locals.put(key, local);
+                preheader.addAll(code);
+                preheader.add(new VMCommand("pop", "local", local).atLine(last.line));
+                if (moves) {
+                    next = expression.end + 2;
+                    hoisted++;
+                    continue;
+                }
+            }
+            body.add(new VMCommand("push", "local", local).atLine(last.line));
+            next = expression.end + 1;
+            hoisted++;
+        }
+        body.addAll(commands.subList(next, end + 1));
+
+        ArrayList<VMCommand> result = new ArrayList<>(commands.size() + preheader.size());
+        result.addAll(commands.subList(0, entry));
+        result.addAll(preheader);
+        result.addAll(commands.subList(entry, start));
+        result.addAll(body);
+        result.addAll(commands.subList(end + 1, commands.size()));
+        function.commands = result;
+        return true;
+    }
+
+    private boolean isPure(VMCommand call) {
+        return PURE_CALLS.contains(call.arg1) && program.getFunction(call.arg1) == null;
+    }
+
+    private static boolean isInvariant(VMCommand push, HashMap<String, Integer> written, boolean memoryWritten) {
+        switch (push.arg1) {
+            case "constant":
+                return true;
+            case "local":
+            case "argument":
+            case "pointer":
+                return !written.containsKey(push.arg1 + " " + push.arg2);
+            case "static":
+            case "temp":
+                return !memoryWritten && !written.containsKey(push.arg1 + " " + push.arg2);
+            case "this":
+                return !memoryWritten && !written.containsKey("pointer 0");
+            case "that":
+                return !memoryWritten && !written.containsKey("pointer 1");
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package io.github.hbusul;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Runs an ordered list of passes over a compiled program. For each pass the time it took and the number of
+ * vm commands before and after it are recorded, to weigh what a pass costs against what it saves and to
+ * find a misbehaving pass by running a shorter list (-passes=...).
+ */
+class PassManager {
+
+    /* A transformation of the whole program */
+    interface Pass {
+        void run(VMProgram program);
+    }
+
+    /* A transformation of one function at a time */
+    interface FunctionPass {
+        void run(VMFunction function);
+    }
+
+    /* Passes of each optimization level, -O0 runs none */
+    static final List<List<String>> LEVELS = Arrays.asList(
+            Arrays.asList(),
+            Arrays.asList("peephole", "labels", "deadcode"),
+            Arrays.asList("inline", "tailcalls", "peephole", "licm", "cse", "labels", "deadcode"));
+
+    static final List<String> PASSES = Arrays.asList("inline", "treeshake", "tailcalls", "peephole", "licm",
+            "cse", "labels", "deadcode");
+
+    private static class Entry {
+        String name;
+        Pass pass;
+        long time;
+        int before;
+        int after;
+    }
+
+    private ArrayList<Entry> entries = new ArrayList<>();
+    private int inlineThreshold = Inliner.DEFAULT_THRESHOLD;
+    private PrintStream log = System.out; //what the passes did
+
+    void setInlineThreshold(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    void add(String name, Pass pass) {
+        Entry entry = new Entry();
+        entry.name = name;
+        entry.pass = pass;
+        entries.add(entry);
+    }
+
+    void addFunctionPass(String name, FunctionPass pass) {
+        add(name, program -> {
+            for (VMFunction function : program.getFunctions())
+                pass.run(function);
+        });
+    }
+
+    /* Adds one of PASSES */
+    void add(String name) {
+        switch (name) {
+            case "inline":
+                add(name, program -> {
+                    int inlined = new Inliner(program, inlineThreshold).run();
+                    log.printf("Inlined %d calls\n", inlined);
+                });
+                break;
+            case "treeshake":
+                add(name, program -> {
+                    if (program.getFunction(TreeShaker.ENTRY_POINT) == null) {
+                        log.println("No " + TreeShaker.ENTRY_POINT + ", nothing removed");
+                        return;
+                    }
+                    ArrayList<String> removed = new TreeShaker(program).run();
+                    log.printf("Removed %d unreachable functions\n", removed.size());
+                    for (String function : removed)
+                        log.println("  " + function);
+                });
+                break;
+            case "licm":
+                add(name, program -> {
+                    int hoisted = new LoopInvariantMotion(program).run();
+                    log.printf("Hoisted %d loop invariant expressions\n", hoisted);
+                });
+                break;
+            case "cse":
+                add(name, program -> {
+                    int replaced = new CommonSubexpressions(program).run();
+                    log.printf("Replaced %d repeated expressions\n", replaced);
+                });
+                break;
+            case "tailcalls":
+                add(name, program -> {
+                    int replaced = new TailCalls(program).run();
+                    log.printf("Replaced %d tail calls with jumps\n", replaced);
+                });
+                break;
+            case "peephole":
+                addFunctionPass(name, Peephole::simplify);
+                break;
+            case "deadcode":
+                addFunctionPass(name, Peephole::removeDeadCode);
+                break;
+            case "labels":
+                addFunctionPass(name, Peephole::removeUnusedLabels);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown pass " + name);
+        }
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    boolean contains(String name) {
+        for (Entry entry : entries)
+            if (entry.name.equals(name))
+                return true;
+        return false;
+    }
+
+    void run(VMProgram program) {
+        for (Entry entry : entries) {
+            entry.before = countCommands(program);
+            long start = System.nanoTime();
+            entry.pass.run(program);
+            entry.time = System.nanoTime() - start;
+            entry.after = countCommands(program);
+        }
+    }
+
+    /* Function declarations included */
+    private static int countCommands(VMProgram program) {
+        int count = 0;
+        for (VMFunction function : program.getFunctions())
+            count += function.commands.size() + 1;
+        return count;
+    }
+
+    void printReport() {
+        for (Entry entry : entries) {
+            System.out.printf("  %-10s %8.2f ms %8d -> %d commands\n", entry.name, entry.time / 1e6, entry.before,
+                    entry.after);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package io.github.hbusul;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/* Local clean ups of the code of a function, each one is a pass of its own, see PassManager */
+class Peephole {
+
+    /*
+     * Rewrites short sequences until none is left:
+     *     push x, pop x            ->
+     *     not, not / neg, neg      ->
+     *     push constant 0, add/sub ->
+     *     goto L, label L          -> label L
+     *     constant, if-goto L      -> goto L when the constant is true, nothing when it is false
+     * true is "push constant 1, neg" or "push constant 0, not" as the compiler writes it.
+     */
+    static void simplify(VMFunction function) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            ArrayList<VMCommand> commands = function.commands;
+            ArrayList<VMCommand> result = new ArrayList<>(commands.size());
+            int i = 0;
+            while (i < commands.size()) {
+                VMCommand command = commands.get(i);
+                VMCommand next = i + 1 < commands.size() ? commands.get(i + 1) : null;
+                VMCommand third = i + 2 < commands.size() ? commands.get(i + 2) : null;
+                int skip = 0;
+                if (next != null) {
+                    if (command.is("push") && next.is("pop", command.arg1, command.arg2) &&
+                            !command.arg1.equals("constant")) {
+                        skip = 2;
+                    } else if ((command.is("not") && next.is("not")) || (command.is("neg") && next.is("neg"))) {
+                        skip = 2;
+                    } else if (command.is("push", "constant", 0) && (next.is("add") || next.is("sub"))) {
+                        skip = 2;
+                    } else if (command.is("goto") && next.is("label", command.arg1)) {
+                        skip = 1;
+                    } else if (command.is("push", "constant") && next.is("if-goto")) {
+                        if (command.arg2 != 0)
+                            result.add(new VMCommand("goto", next.arg1, 0).atLine(next.line));
+                        skip = 2;
+                    } else if (third != null && third.is("if-goto") &&
+                            (command.is("push", "constant", 1) && next.is("neg") ||
+                                    command.is("push", "constant", 0) && next.is("not"))) {
+                        result.add(new VMCommand("goto", third.arg1, 0).atLine(third.line));
+                        skip = 3;
+                    }
+                }
+                if (skip == 0) {
+                    result.add(command);
+                    i++;
+                } else {
+                    i += skip;
+                    changed = true;
+                }
+            }
+            function.commands = result;
+        }
+    }
+
+    /* Removes the commands after a goto or return that no label makes reachable */
+    static void removeDeadCode(VMFunction function) {
+        ArrayList<VMCommand> result = new ArrayList<>(function.commands.size());
+        boolean reachable = true;
+        for (VMCommand command : function.commands) {
+            if (command.is("label"))
+                reachable = true;
+            if (reachable)
+                result.add(command);
+            if (command.is("goto") || command.is("return"))
+                reachable = false;
+        }
+        function.commands = result;
+    }
+
+    /* Removes the labels that no goto or if-goto of the function jumps to */
+    static void removeUnusedLabels(VMFunction function) {
+        HashSet<String> targets = new HashSet<>();
+        for (VMCommand command : function.commands) {
+            if (command.is("goto") || command.is("if-goto"))
+                targets.add(command.arg1);
+        }
+        function.commands.removeIf(command -> command.is("label") && !targets.contains(command.arg1));
+    }
+}
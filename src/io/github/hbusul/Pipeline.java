@@ -0,0 +1,357 @@
+package io.github.hbusul;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Compiles a set of Jack files in stages, each stage hands a complete data structure to the next:
+ *   index    - signatures of every class are scanned in parallel            -> SignatureIndex
+ *   read     - sources are read, one I/O task per file                       -> source texts
+ *   compile  - each class is parsed and translated on the compile pool, the   -> VMProgram, parse trees
+ *              subroutines of a large class in parallel too
+ *   optimize - the passes of a PassManager (inlining, peephole...) run       -> VMProgram
+ *   write    - .vm, .xml and token dumps (and their binary forms) are written, one I/O task per file
+ * I/O tasks run on virtual threads when the JVM has them, so thousands of reads and writes can wait on a
+ * slow file system at once, otherwise on a bounded pool. Compilation is CPU bound and gets one thread per core.
+ * The errors of all the files are reported together after compiling; files with errors get no outputs and the
+ * whole program passes are skipped.
+ */
+class Pipeline {
+
+    interface Task<T, R> {
+        R run(T item) throws IOException;
+    }
+
+    /* Outputs of one class */
+    private static class Compiled {
+        String parseTree;
+        String vmCode;
+        byte[] binaryTree;
+        List<Diagnostic> diagnostics;
+    }
+
+    private List<String> inputs;
+    private String signatureCacheFileName;
+    private PassManager passes = new PassManager();
+    private boolean streaming;
+    private boolean binaryDumps;
+    private boolean sourceMaps;
+    private int stackBudget; //0 for no stack analysis
+
+    private SignatureIndex signatureIndex;
+    private List<String> sources;
+    private List<String> parseTrees;
+    private List<byte[]> binaryTrees;
+    private List<Diagnostic> diagnostics = new ArrayList<>();
+    private boolean[] failed; //files with errors
+    private VMProgram program;
+
+    private long indexTime, readTime, compileTime, optimizeTime, writeTime;
+
+    /* Used for I/O when virtual threads are not available */
+    private static final int IO_THREADS = 64;
+
+    /* Classes from this many characters on have their subroutines compiled in parallel too, on more than one core */
+    private static final int PARALLEL_CLASS_SIZE = 1 << 16;
+
+    Pipeline(List<String> inputs, String signatureCacheFileName) {
+        this.inputs = inputs;
+        this.signatureCacheFileName = signatureCacheFileName;
+    }
+
+    void setPasses(PassManager passes) {
+        this.passes = passes;
+    }
+
+    /*
+     * Compiles each file straight to its outputs, one subroutine at a time, instead of keeping the sources and
+     * the program in memory. There is no whole program stage then.
+     */
+    void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /* Writes .jkt and T.jkt files, see BinaryTreeWriter, next to the xml dumps */
+    void setBinaryDumps(boolean binaryDumps) {
+        this.binaryDumps = binaryDumps;
+    }
+
+    /* Writes a .vm.map next to each .vm, see SourceMapWriter */
+    void setSourceMaps(boolean sourceMaps) {
+        this.sourceMaps = sourceMaps;
+    }
+
+    /* Prints the stack use of the optimized program, see StackAnalyzer, 0 for none */
+    void setStackBudget(int stackBudget) {
+        this.stackBudget = stackBudget;
+    }
+
+    void run() throws IOException {
+        ExecutorService ioExecutor = newIOExecutor();
+        ExecutorService compileExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            long start = System.nanoTime();
+            signatureIndex = SignatureIndex.build(inputs, signatureCacheFileName);
+            long indexed = System.nanoTime();
+            if (streaming) {
+                compileStreaming(compileExecutor);
+                indexTime = indexed - start;
+                compileTime = System.nanoTime() - indexed;
+                reportErrors();
+                return;
+            }
+            sources = forEach(ioExecutor, inputs,
+                    fileName -> new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.UTF_8));
+            long read = System.nanoTime();
+            program = compile(compileExecutor);
+            long compiled = System.nanoTime();
+            reportErrors();
+            if (diagnostics.isEmpty())
+                passes.run(program);
+            else if (!passes.isEmpty())
+                System.out.println("The program has errors, it is not optimized");
+            if (diagnostics.isEmpty() && stackBudget > 0)
+                new StackAnalyzer(program).printReport(stackBudget);
+            long optimized = System.nanoTime();
+            write(ioExecutor);
+            long written = System.nanoTime();
+
+            indexTime = indexed - start;
+            readTime = read - indexed;
+            compileTime = compiled - read;
+            optimizeTime = optimized - compiled;
+            writeTime = written - optimized;
+        } finally {
+            ioExecutor.shutdown();
+            compileExecutor.shutdown();
+        }
+    }
+
+    int getErrorCount() {
+        return diagnostics.size();
+    }
+
+    private void reportErrors() {
+        for (Diagnostic diagnostic : diagnostics)
+            System.out.println(diagnostic);
+        if (!diagnostics.isEmpty())
+            System.out.printf("%d error%s\n", diagnostics.size(), diagnostics.size() == 1 ? "" : "s");
+    }
+
+    void printTimes() {
+        System.out.printf("index    %8.2f ms (%d of %d files scanned)\n", indexTime / 1e6,
+                signatureIndex.getScannedFiles(), inputs.size());
+        System.out.printf("read     %8.2f ms\n", readTime / 1e6);
+        System.out.printf("compile  %8.2f ms\n", compileTime / 1e6);
+        System.out.printf("optimize %8.2f ms\n", optimizeTime / 1e6);
+        passes.printReport();
+        System.out.printf("write    %8.2f ms\n", writeTime / 1e6);
+    }
+
+    private static ExecutorService newIOExecutor() {
+        try {
+            //Java 21 and later
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(IO_THREADS);
+        }
+    }
+
+    private VMProgram compile(ExecutorService executor) throws IOException {
+        for (String input : inputs)
+            System.out.printf("Compiling %s\n", input);
+
+        parseTrees = new ArrayList<>();
+        binaryTrees = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++)
+            indices.add(i);
+
+        List<Compiled> compiled = forEach(executor, indices, i -> {
+            Compiled result = new Compiled();
+            StringWriter xmlOutput = new StringWriter();
+            StringWriter vmOutput = new StringWriter();
+            ByteArrayOutputStream binaryOutput = binaryDumps ? new ByteArrayOutputStream() : null;
+            TreeWriter treeOutput = new BasicXMLWriter(xmlOutput);
+            if (binaryDumps)
+                treeOutput = TreeWriter.both(treeOutput, new BinaryTreeWriter(binaryOutput));
+            JackTokenizer tokenizer = new JackTokenizer(sources.get(i), inputs.get(i));
+            try (CompilationEngine engine = new CompilationEngine(tokenizer, signatureIndex, treeOutput, vmOutput)) {
+                engine.setSourceMap(sourceMaps);
+                if (sources.get(i).length() >= PARALLEL_CLASS_SIZE && Runtime.getRuntime().availableProcessors() > 1)
+                    engine.setParallel(sources.get(i));
+                engine.compileClass();
+                result.diagnostics = engine.getDiagnostics();
+            }
+            result.parseTree = xmlOutput.toString();
+            result.vmCode = vmOutput.toString();
+            result.binaryTree = binaryDumps ? binaryOutput.toByteArray() : null;
+            return result;
+        });
+
+        VMProgram program = new VMProgram();
+        failed = new boolean[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            Compiled result = compiled.get(i);
+            parseTrees.add(result.parseTree);
+            binaryTrees.add(result.binaryTree);
+            diagnostics.addAll(result.diagnostics);
+            failed[i] = !result.diagnostics.isEmpty();
+            if (!failed[i]) {
+                program.addFile(vmFileName(inputs.get(i)),
+                        VMProgram.parse(new BufferedReader(new StringReader(result.vmCode)), inputs.get(i)));
+            }
+        }
+        return program;
+    }
+
+    private void compileStreaming(ExecutorService executor) throws IOException {
+        for (String input : inputs)
+            System.out.printf("Compiling %s\n", input);
+
+        List<List<Diagnostic>> results = forEach(executor, inputs, fileName -> {
+            String baseName = fileName.substring(0, fileName.length() - 5);
+            List<Diagnostic> errors;
+            Writer vmOutput = new ChannelWriter(baseName + ".vm");
+            if (sourceMaps)
+                vmOutput = new SourceMapWriter(vmOutput, new ChannelWriter(baseName + ".vm.map"), sourceName(fileName));
+            try (CompilationEngine engine = new CompilationEngine(new JackTokenizer(fileName), signatureIndex,
+                    treeWriter(baseName, ""), vmOutput)) {
+                engine.setStreaming(true);
+                engine.setSourceMap(sourceMaps);
+                engine.compileClass();
+                errors = engine.getDiagnostics();
+            }
+            if (!errors.isEmpty()) {
+                //the outputs were written as the class was compiled, they are incomplete
+                deleteOutputs(baseName);
+                return errors;
+            }
+            dumpTokens(new JackTokenizer(fileName), treeWriter(baseName, "T"));
+            return errors;
+        });
+        for (List<Diagnostic> errors : results)
+            diagnostics.addAll(errors);
+    }
+
+    private void write(ExecutorService executor) throws IOException {
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++)
+            indices.add(i);
+
+        forEach(executor, indices, i -> {
+            String fileName = inputs.get(i);
+            String baseName = fileName.substring(0, fileName.length() - 5);
+            if (failed[i]) {
+                deleteOutputs(baseName); //outputs of an earlier build would not match the source
+                return null;
+            }
+            program.write(vmFileName(fileName), sourceMaps ? sourceName(fileName) : null);
+            try (Writer writer = new ChannelWriter(baseName + ".xml")) {
+                writer.write(parseTrees.get(i));
+            }
+            if (binaryDumps)
+                Files.write(Paths.get(baseName + ".jkt"), binaryTrees.get(i));
+            JackTokenizer tokenizer = new JackTokenizer(sources.get(i), fileName);
+            dumpTokens(tokenizer, treeWriter(baseName, "T"));
+            return null;
+        });
+    }
+
+    private static void deleteOutputs(String baseName) throws IOException {
+        for (String suffix : new String[]{".vm", ".vm.map", ".xml", ".jkt", "T.xml", "T.jkt"})
+            Files.deleteIfExists(Paths.get(baseName + suffix));
+    }
+
+    /* How a source map names its Jack file, the map is next to it */
+    private static String sourceName(String fileName) {
+        return Paths.get(fileName).getFileName().toString();
+    }
+
+    private static String vmFileName(String fileName) {
+        return fileName.substring(0, fileName.length() - 5) + ".vm";
+    }
+
+    /* Runs task for every item on executor, the results are in the order of items */
+    static <T, R> List<R> forEach(ExecutorService executor, List<T> items, Task<T, R> task) throws IOException {
+        ArrayList<Future<R>> futures = new ArrayList<>();
+        for (T item : items)
+            futures.add(executor.submit(() -> task.run(item)));
+
+        ArrayList<R> results = new ArrayList<>();
+        try {
+            for (Future<R> future : futures)
+                results.add(future.get());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+        return results;
+    }
+
+    /* Writer for baseName + suffix + ".xml", and ".jkt" too with binary dumps */
+    private TreeWriter treeWriter(String baseName, String suffix) throws IOException {
+        TreeWriter writer = new BasicXMLWriter(new ChannelWriter(baseName + suffix + ".xml"));
+        if (!binaryDumps)
+            return writer;
+        return TreeWriter.both(writer, new BinaryTreeWriter(
+                new BufferedOutputStream(new FileOutputStream(baseName + suffix + ".jkt"), 1 << 16)));
+    }
+
+    private static void dumpTokens(JackTokenizer source, TreeWriter xmlWriter) throws IOException {
+        xmlWriter.openTag("tokens");
+        try (JackTokenizer tokenizer = source) {
+            while (tokenizer.hasMoreTokens()) {
+                tokenizer.advance();
+                TokenType tokenType = tokenizer.getTokenType();
+                switch (tokenType) {
+                    case KEYWORD:
+                        xmlWriter.openTag("keyword");
+                        xmlWriter.writeValue(tokenizer.keyword().toString().toLowerCase(Locale.US));
+                        xmlWriter.closeTag("keyword");
+
+                        break;
+                    case SYMBOL:
+                        xmlWriter.openTag("symbol");
+                        xmlWriter.writeValue(tokenizer.symbol() + "");
+                        xmlWriter.closeTag("symbol");
+                        break;
+                    case INT_CONST:
+                        xmlWriter.openTag("integerConstant");
+                        xmlWriter.writeValue(tokenizer.intVal() + "");
+                        xmlWriter.closeTag("integerConstant");
+                        break;
+                    case STRING_CONST:
+                        xmlWriter.openTag("stringConstant");
+                        xmlWriter.writeValue(tokenizer.stringVal());
+                        xmlWriter.closeTag("stringConstant");
+                        break;
+                    case IDENTIFIER:
+                        xmlWriter.openTag("identifier");
+                        xmlWriter.writeValue(tokenizer.identifier());
+                        xmlWriter.closeTag("identifier");
+                        break;
+                }
+            }
+        }
+        xmlWriter.closeTag("tokens");
+        xmlWriter.close();
+    }
+}
@@ -0,0 +1,262 @@
+package io.github.hbusul;
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/*
+ * Kinds and argument counts of the subroutines of every class of a program, plus the OS classes.
+ * Built by a quick scan of the token stream of each file, files are scanned in parallel. The result
+ * can be saved to a cache file, on the next build only the files that changed are scanned again.
+ */
+class SignatureIndex {
+
+    static class Signature {
+        final KeywordType kind; //CONSTRUCTOR, FUNCTION or METHOD
+        final int argumentCount; //without the object of a method
+
+        Signature(KeywordType kind, int argumentCount) {
+            this.kind = kind;
+            this.argumentCount = argumentCount;
+        }
+    }
+
+    private static class ClassEntry {
+        String className;
+        long lastModified;
+        long length;
+        LinkedHashMap<String, Signature> subroutines = new LinkedHashMap<>();
+        //the file has bad tokens or its braces do not match, some subroutines may be missing
+        boolean incomplete;
+    }
+
+    private static final String[] OS_SIGNATURES = {
+            "Math", "function init 0", "function abs 1", "function multiply 2", "function divide 2",
+            "function min 2", "function max 2", "function sqrt 1",
+            "String", "constructor new 1", "method dispose 0", "method length 0", "method charAt 1",
+            "method setCharAt 2", "method appendChar 1", "method eraseLastChar 0", "method intValue 0",
+            "method setInt 1", "function backSpace 0", "function doubleQuote 0", "function newLine 0",
+            "Array", "function new 1", "method dispose 0",
+            "Output", "function init 0", "function moveCursor 2", "function printChar 1",
+            "function printString 1", "function printInt 1", "function println 0", "function backSpace 0",
+            "Screen", "function init 0", "function clearScreen 0", "function setColor 1", "function drawPixel 2",
+            "function drawLine 4", "function drawRectangle 4", "function drawCircle 3",
+            "Keyboard", "function init 0", "function keyPressed 0", "function readChar 0",
+            "function readLine 1", "function readInt 1",
+            "Memory", "function init 0", "function peek 1", "function poke 2", "function alloc 1",
+            "function deAlloc 1",
+            "Sys", "function init 0", "function halt 0", "function error 1", "function wait 1"
+    };
+
+    private static final HashMap<String, ClassEntry> OS_CLASSES = new HashMap<>(); //never changed once built
+
+    static {
+        ClassEntry os = null;
+        for (String s : OS_SIGNATURES) {
+            String[] parts = s.split(" ");
+            if (parts.length == 1) {
+                os = new ClassEntry();
+                os.className = s;
+                OS_CLASSES.put(s, os);
+            } else {
+                os.subroutines.put(parts[1], new Signature(KeywordType.valueOf(parts[0].toUpperCase(Locale.US)),
+                        Integer.parseInt(parts[2])));
+            }
+        }
+    }
+
+    private HashMap<String, ClassEntry> files; //source file name to its class
+    private HashMap<String, ClassEntry> classes;
+    private int scannedFiles;
+
+    private SignatureIndex() {
+        files = new HashMap<>();
+        classes = new HashMap<>(OS_CLASSES);
+    }
+
+    /* cacheFileName can be null, then nothing is cached */
+    static SignatureIndex build(List<String> fileNames, String cacheFileName) throws IOException {
+        SignatureIndex index = new SignatureIndex();
+        HashMap<String, ClassEntry> cached = new HashMap<>();
+        if (cacheFileName != null && new File(cacheFileName).exists())
+            cached = readCache(cacheFileName);
+
+        ArrayList<String> stale = new ArrayList<>();
+        for (String fileName : fileNames) {
+            File file = new File(fileName);
+            ClassEntry entry = cached.get(fileName);
+            if (entry != null && entry.lastModified == file.lastModified() && entry.length == file.length())
+                index.add(fileName, entry);
+            else
+                stale.add(fileName);
+        }
+
+        List<ClassEntry> scanned;
+        try {
+            scanned = stale.parallelStream().map(fileName -> {
+                try {
+                    return scan(fileName);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        for (int i = 0; i < stale.size(); i++)
+            index.add(stale.get(i), scanned.get(i));
+        index.scannedFiles = stale.size();
+
+        if (cacheFileName != null && (!stale.isEmpty() || cached.size() != fileNames.size()))
+            index.writeCache(cacheFileName);
+        return index;
+    }
+
+    /* For sources in memory, by file name. Nothing is cached. */
+    static SignatureIndex build(Map<String, ? extends CharSequence> sources) throws IOException {
+        SignatureIndex index = new SignatureIndex();
+        for (Map.Entry<String, ? extends CharSequence> source : sources.entrySet())
+            index.add(source.getKey(), scan(new JackTokenizer(source.getValue(), source.getKey())));
+        index.scannedFiles = sources.size();
+        return index;
+    }
+
+    private void add(String fileName, ClassEntry entry) {
+        files.put(fileName, entry);
+        if (entry.className != null)
+            classes.put(entry.className, entry);
+    }
+
+    /* Number of files that were scanned instead of being taken from the cache */
+    int getScannedFiles() {
+        return scannedFiles;
+    }
+
+    /* One of the classes of the Jack OS */
+    static boolean isOSClass(String className) {
+        return OS_CLASSES.containsKey(className);
+    }
+
+    /* Whether all the subroutines of a class are known, calls to other classes can not be checked */
+    boolean hasClass(String className) {
+        ClassEntry entry = classes.get(className);
+        return entry != null && !entry.incomplete;
+    }
+
+    /* Returns null if the class or the subroutine is not known */
+    Signature lookup(String className, String subroutineName) {
+        ClassEntry entry = classes.get(className);
+        if (entry == null)
+            return null;
+        return entry.subroutines.get(subroutineName);
+    }
+
+    private static ClassEntry scan(String fileName) throws IOException {
+        File file = new File(fileName);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        ClassEntry entry = scan(new JackTokenizer(fileName));
+        entry.lastModified = lastModified;
+        entry.length = length;
+        return entry;
+    }
+
+    private static ClassEntry scan(JackTokenizer source) throws IOException {
+        ClassEntry entry = new ClassEntry();
+        try (JackTokenizer tokenizer = source) {
+            int depth = 0;
+            while (next(tokenizer, entry)) {
+                TokenType tokenType = tokenizer.getTokenType();
+                if (tokenType == TokenType.SYMBOL) {
+                    if (tokenizer.symbol() == '{') depth++;
+                    else if (tokenizer.symbol() == '}') depth--;
+                } else if (tokenType == TokenType.KEYWORD) {
+                    KeywordType keywordType = tokenizer.keyword();
+                    if (keywordType == KeywordType.CLASS && next(tokenizer, entry)) {
+                        depth = 0; //a bad token before can not shift the subroutines of the class
+                        entry.className = tokenizer.identifier();
+                    } else if (depth == 1 && (keywordType == KeywordType.CONSTRUCTOR ||
+                            keywordType == KeywordType.FUNCTION || keywordType == KeywordType.METHOD)) {
+                        next(tokenizer, entry); //return type
+                        next(tokenizer, entry);
+                        String name = tokenizer.identifier();
+                        next(tokenizer, entry); //(
+                        int argumentCount = 0;
+                        while (next(tokenizer, entry)) {
+                            if (tokenizer.getTokenType() == TokenType.SYMBOL) {
+                                if (tokenizer.symbol() == ')') break;
+                                if (tokenizer.symbol() == ',') argumentCount++;
+                            } else if (argumentCount == 0) {
+                                argumentCount = 1;
+                            }
+                        }
+                        entry.subroutines.put(name, new Signature(keywordType, argumentCount));
+                    }
+                }
+            }
+            if (depth != 0) //an unterminated comment ends the input too
+                entry.incomplete = true;
+        }
+        return entry;
+    }
+
+    /* Bad tokens are skipped, the compiler reports them, and the entry is incomplete */
+    private static boolean next(JackTokenizer tokenizer, ClassEntry entry) throws IOException {
+        while (tokenizer.hasMoreTokens()) {
+            try {
+                tokenizer.advance();
+                return true;
+            } catch (RuntimeException e) {
+                entry.incomplete = true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * One line per source file, followed by one line per subroutine:
+     * file <lastModified> <length> <className> <fileName>
+     * <kind> <name> <argumentCount>
+     */
+    private static HashMap<String, ClassEntry> readCache(String cacheFileName) throws IOException {
+        HashMap<String, ClassEntry> cached = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(cacheFileName))) {
+            ClassEntry entry = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 5);
+                if (parts[0].equals("file") && parts.length == 5) {
+                    entry = new ClassEntry();
+                    entry.lastModified = Long.parseLong(parts[1]);
+                    entry.length = Long.parseLong(parts[2]);
+                    entry.className = parts[3].equals("null") ? null : parts[3];
+                    cached.put(parts[4], entry);
+                } else if (entry != null && parts.length == 3) {
+                    entry.subroutines.put(parts[1], new Signature(KeywordType.valueOf(parts[0]),
+                            Integer.parseInt(parts[2])));
+                } else {
+                    return new HashMap<>(); //unreadable cache, scan everything again
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return new HashMap<>();
+        }
+        return cached;
+    }
+
+    private void writeCache(String cacheFileName) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(cacheFileName))) {
+            for (Map.Entry<String, ClassEntry> file : files.entrySet()) {
+                ClassEntry entry = file.getValue();
+                if (entry.incomplete)
+                    continue; //scanned again until it is fixed
+                writer.write("file " + entry.lastModified + " " + entry.length + " " + entry.className + " " +
+                        file.getKey() + "\n");
+                for (Map.Entry<String, Signature> subroutine : entry.subroutines.entrySet()) {
+                    writer.write(subroutine.getValue().kind + " " + subroutine.getKey() + " " +
+                            subroutine.getValue().argumentCount + "\n");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.github.hbusul;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/*
+ * Takes vm code with "//line n" markers in it (see VMWriter.enableSourceLines), writes the code without the
+ * markers to vmOutput and its source map to mapOutput. The first line of the map is the Jack file, then
+ * there is one line per range of vm lines that come from the same Jack line of the same function:
+ *     first last line function
+ * vm lines are counted from 1, function and label lines included, and the ranges follow each other.
+ */
+class SourceMapWriter extends Writer {
+    static final String MARKER = "//line ";
+
+    private Writer vmOutput;
+    private Writer mapOutput;
+    private StringBuilder currentLine = new StringBuilder();
+    private int vmLine;
+    private int sourceLine;
+    private String function = "";
+
+    private int rangeFirst;
+    private int rangeLine;
+    private String rangeFunction;
+
+    SourceMapWriter(Writer vmOutput, Writer mapOutput, String sourceName) throws IOException {
+        this.vmOutput = vmOutput;
+        this.mapOutput = mapOutput;
+        mapOutput.write(sourceName + "\n");
+    }
+
+    /* Reads a source map back, the Jack line of each vm line (index 0 is unused) */
+    static int[] readLines(BufferedReader map) throws IOException {
+        int[] lines = new int[1024];
+        String line = map.readLine(); //the Jack file
+        while ((line = map.readLine()) != null) {
+            String[] range = line.split(" ");
+            int first = Integer.parseInt(range[0]);
+            int last = Integer.parseInt(range[1]);
+            if (last >= lines.length)
+                lines = Arrays.copyOf(lines, Math.max(last + 1, lines.length * 2));
+            Arrays.fill(lines, first, last + 1, Integer.parseInt(range[2]));
+        }
+        return lines;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            if (cbuf[i] == '\n')
+                endLine();
+            else
+                currentLine.append(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            char c = str.charAt(i);
+            if (c == '\n')
+                endLine();
+            else
+                currentLine.append(c);
+        }
+    }
+
+    private void endLine() throws IOException {
+        String line = currentLine.toString();
+        currentLine.setLength(0);
+        if (line.startsWith(MARKER)) {
+            sourceLine = Integer.parseInt(line.substring(MARKER.length()));
+            return;
+        }
+        vmOutput.write(line);
+        vmOutput.write('\n');
+        vmLine++;
+        if (line.startsWith("function "))
+            function = line.substring(9, line.indexOf(' ', 9));
+        if (rangeFirst > 0 && sourceLine == rangeLine && function.equals(rangeFunction))
+            return;
+        writeRange(vmLine - 1);
+        rangeFirst = vmLine;
+        rangeLine = sourceLine;
+        rangeFunction = function;
+    }
+
+    private void writeRange(int last) throws IOException {
+        if (rangeFirst > 0)
+            mapOutput.write(rangeFirst + " " + last + " " + rangeLine + " " + rangeFunction + "\n");
+    }
+
+    @Override
+    public void flush() throws IOException {
+        vmOutput.flush();
+        mapOutput.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (vmOutput == null)
+            return;
+        if (currentLine.length() > 0)
+            endLine();
+        writeRange(vmLine);
+        try {
+            vmOutput.close();
+        } finally {
+            mapOutput.close();
+        }
+        vmOutput = null;
+    }
+}
@@ -0,0 +1,80 @@
+package io.github.hbusul;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/*
+ * Finds the Jack files under a directory. Every directory with Jack files in it is a package, which is
+ * compiled as one program. Include and exclude globs are matched against paths relative to the root,
+ * e.g. "lib/**" or "*Test.jack"; a file is taken if it matches an include (or there are none) and
+ * neither it nor any of its directories match an exclude.
+ */
+class SourceTree {
+    private Path root;
+    private boolean recursive;
+    private ArrayList<PathMatcher> includes;
+    private ArrayList<PathMatcher> excludes;
+
+    SourceTree(Path root, boolean recursive) {
+        this.root = root.toAbsolutePath().normalize();
+        this.recursive = recursive;
+        includes = new ArrayList<>();
+        excludes = new ArrayList<>();
+    }
+
+    void include(String glob) {
+        includes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    void exclude(String glob) {
+        excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    /* Jack files by the directory they are in, both sorted so that builds are repeatable */
+    TreeMap<Path, List<String>> findPackages() throws IOException {
+        TreeMap<Path, List<String>> packages = new TreeMap<>();
+        Files.walkFileTree(root, Collections.emptySet(), recursive ? Integer.MAX_VALUE : 1,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        if (!dir.equals(root) && isExcluded(root.relativize(dir)))
+                            return FileVisitResult.SKIP_SUBTREE;
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        Path relative = root.relativize(file);
+                        if (attrs.isRegularFile() && file.getFileName().toString().endsWith(".jack") &&
+                                isIncluded(relative) && !isExcluded(relative)) {
+                            packages.computeIfAbsent(file.getParent(), dir -> new ArrayList<>()).add(file.toString());
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        for (List<String> files : packages.values())
+            Collections.sort(files);
+        return packages;
+    }
+
+    private boolean isIncluded(Path relative) {
+        if (includes.isEmpty())
+            return true;
+        for (PathMatcher matcher : includes)
+            if (matcher.matches(relative))
+                return true;
+        return false;
+    }
+
+    private boolean isExcluded(Path relative) {
+        for (PathMatcher matcher : excludes)
+            if (matcher.matches(relative))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,225 @@
+package io.github.hbusul;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Finds how much of the Hack stack the functions of a program can use, without running it. For each function:
+ *   frame - its arguments, locals and the 5 words a call saves (return address, LCL, ARG, THIS, THAT)
+ *   depth - the highest its working stack gets, from the stack heights of BytecodeCompiler.stackDepths
+ *   worst - the words a call of it uses with the deepest chain of calls it can make: its frame, then for each
+ *           call the working stack below the arguments and the worst of the function called
+ * Functions that call each other in a cycle are recursive, their calls within the cycle are left out of the
+ * worst and reported apart with the words each level of recursion adds. OS functions that are not in the
+ * program count as their frame only.
+ */
+class StackAnalyzer {
+    static final int HACK_STACK_SIZE = 2048 - 256; //the stack is RAM[256..2047]
+    private static final int SAVED_WORDS = 5;
+
+    private final ArrayList<VMFunction> functions;
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final int[] frames;
+    private final int[] depths; //-1 if the height at a label depends on the path
+    //the working stack below the arguments of each call command, -1 if the call is never reached
+    private final int[][] callDepths;
+
+    //cycles of calls, by Tarjan's algorithm: the functions of a cycle get the same component
+    private final int[] components;
+    private final boolean[] recursive;
+    private int componentCount;
+    private int[] order;
+    private int[] lowLinks;
+    private final ArrayList<Integer> componentStack = new ArrayList<>();
+    private boolean[] onStack;
+    private int visited;
+
+    private final int[] worst;
+    private final String[] deepestCalls; //the function called on the deepest chain, null if none
+
+    StackAnalyzer(VMProgram program) {
+        functions = new ArrayList<>();
+        for (VMFunction function : program.getFunctions())
+            functions.add(function);
+        for (int id = 0; id < functions.size(); id++)
+            ids.put(functions.get(id).name, id);
+        frames = new int[functions.size()];
+        depths = new int[functions.size()];
+        callDepths = new int[functions.size()][];
+        HashMap<String, Integer> arguments = new HashMap<>();
+        for (VMFunction function : functions) {
+            for (VMCommand command : function.commands) {
+                if (command.is("call"))
+                    arguments.merge(command.arg1, command.arg2, Math::max);
+                else if (command.is("push", "argument") || command.is("pop", "argument"))
+                    arguments.merge(function.name, command.arg2 + 1, Math::max);
+            }
+        }
+        for (int id = 0; id < functions.size(); id++) {
+            VMFunction function = functions.get(id);
+            frames[id] = arguments.getOrDefault(function.name, 0) + function.numberOfLocalVariables + SAVED_WORDS;
+            int[] heights = BytecodeCompiler.stackDepths(function);
+            callDepths[id] = new int[function.commands.size()];
+            depths[id] = heights == null ? -1 : 0;
+            for (int i = 0; i < function.commands.size(); i++) {
+                VMCommand command = function.commands.get(i);
+                if (heights != null) {
+                    depths[id] = Math.max(depths[id], Math.max(heights[i], heights[i + 1]));
+                    if (command.is("call"))
+                        callDepths[id][i] = heights[i] < 0 ? -1 : heights[i] - command.arg2;
+                }
+            }
+        }
+
+        components = new int[functions.size()];
+        recursive = new boolean[functions.size()];
+        order = new int[functions.size()];
+        lowLinks = new int[functions.size()];
+        onStack = new boolean[functions.size()];
+        for (int id = 0; id < functions.size(); id++)
+            if (order[id] == 0)
+                findCycles(id);
+        order = null;
+        lowLinks = null;
+        onStack = null;
+
+        worst = new int[functions.size()];
+        deepestCalls = new String[functions.size()];
+        Arrays.fill(worst, -1);
+        for (int id = 0; id < functions.size(); id++)
+            worst(id);
+    }
+
+    private void findCycles(int id) {
+        order[id] = lowLinks[id] = ++visited;
+        componentStack.add(id);
+        onStack[id] = true;
+        for (VMCommand command : functions.get(id).commands) {
+            Integer callee = command.is("call") ? ids.get(command.arg1) : null;
+            if (callee == null)
+                continue;
+            if (callee == id)
+                recursive[id] = true;
+            if (order[callee] == 0) {
+                findCycles(callee);
+                lowLinks[id] = Math.min(lowLinks[id], lowLinks[callee]);
+            } else if (onStack[callee]) {
+                lowLinks[id] = Math.min(lowLinks[id], order[callee]);
+            }
+        }
+        if (lowLinks[id] != order[id])
+            return;
+        ArrayList<Integer> members = new ArrayList<>();
+        int member;
+        do {
+            member = componentStack.remove(componentStack.size() - 1);
+            onStack[member] = false;
+            components[member] = componentCount;
+            members.add(member);
+        } while (member != id);
+        if (members.size() > 1)
+            for (int other : members)
+                recursive[other] = true;
+        componentCount++;
+    }
+
+    /* The calls of a cycle are left out, so the functions it calls are done before it */
+    private int worst(int id) {
+        if (worst[id] >= 0)
+            return worst[id];
+        int deepest = Math.max(depths[id], 0);
+        ArrayList<VMCommand> commands = functions.get(id).commands;
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (!command.is("call") || callDepths[id][i] < 0)
+                continue;
+            Integer callee = ids.get(command.arg1);
+            if (callee != null && components[callee] == components[id])
+                continue;
+            int called = callDepths[id][i] + (callee != null ? worst(callee) : command.arg2 + SAVED_WORDS);
+            if (called > deepest || deepestCalls[id] == null && called == deepest) {
+                deepest = called;
+                deepestCalls[id] = command.arg1;
+            }
+        }
+        return worst[id] = frames[id] + deepest;
+    }
+
+    /* The most words one level of a recursive cycle can add: a frame and the working stack below a call */
+    private int wordsPerLevel(int component) {
+        int words = 0;
+        for (int id = 0; id < functions.size(); id++) {
+            if (components[id] != component)
+                continue;
+            ArrayList<VMCommand> commands = functions.get(id).commands;
+            for (int i = 0; i < commands.size(); i++) {
+                Integer callee = commands.get(i).is("call") ? ids.get(commands.get(i).arg1) : null;
+                if (callee != null && components[callee] == component && callDepths[id][i] >= 0)
+                    words = Math.max(words, frames[id] + callDepths[id][i]);
+            }
+        }
+        return words;
+    }
+
+    /* The chain of calls that uses the most words from a function */
+    private ArrayList<String> deepestChain(String name) {
+        ArrayList<String> chain = new ArrayList<>();
+        for (String next = name; next != null; ) {
+            chain.add(next);
+            Integer id = ids.get(next);
+            next = id != null ? deepestCalls[id] : null;
+        }
+        return chain;
+    }
+
+    /*
+     * Prints the frame, depth and worst of each function by worst, the deepest chain from Main.main, the
+     * recursive cycles and everything that is over budget words
+     */
+    void printReport(int budget) {
+        ArrayList<Integer> sorted = new ArrayList<>();
+        for (int id = 0; id < functions.size(); id++)
+            sorted.add(id);
+        sorted.sort((a, b) -> Integer.compare(worst[b], worst[a]));
+        int width = 10;
+        for (VMFunction function : functions)
+            width = Math.max(width, function.name.length());
+        System.out.printf("stack use in words, the budget is %d%n", budget);
+        System.out.printf("%-" + width + "s %7s %7s %7s%n", "subroutine", "frame", "depth", "worst");
+        for (int id : sorted)
+            System.out.printf("%-" + width + "s %7d %7s %7d%s%n", functions.get(id).name, frames[id],
+                    depths[id] < 0 ? "?" : Integer.toString(depths[id]), worst[id],
+                    recursive[id] ? " recursive" : "");
+
+        Integer entry = ids.get(TreeShaker.ENTRY_POINT);
+        int entryWorst = entry != null ? worst[entry] : 0;
+        if (entry != null)
+            System.out.printf("deepest chain from %s: %d words, %s%n", TreeShaker.ENTRY_POINT, entryWorst,
+                    String.join(" -> ", deepestChain(TreeShaker.ENTRY_POINT)));
+
+        boolean[] reported = new boolean[componentCount];
+        for (int id = 0; id < functions.size(); id++) {
+            if (!recursive[id] || reported[components[id]])
+                continue;
+            reported[components[id]] = true;
+            ArrayList<String> cycle = new ArrayList<>();
+            for (int other = 0; other < functions.size(); other++)
+                if (components[other] == components[id])
+                    cycle.add(functions.get(other).name);
+            int words = wordsPerLevel(components[id]);
+            System.out.printf("recursive: %s", String.join(", ", cycle));
+            if (words > 0) //the calls of the cycle are reached
+                System.out.printf(", each level adds up to %d words, about %d levels fit in the budget", words,
+                        Math.max(budget - Math.max(entryWorst, worst[id]), 0) / words);
+            System.out.println();
+        }
+
+        for (int id : sorted) {
+            if (worst[id] <= budget)
+                break;
+            System.out.printf("over the budget: %s uses up to %d words, %s%n", functions.get(id).name, worst[id],
+                    String.join(" -> ", deepestChain(functions.get(id).name)));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package io.github.hbusul;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/*
+ * Turns the calls of a function to itself whose result is returned right away, return f(...), into jumps
+ * to its start:
+ *     call F n, return  ->  pop argument n-1, ..., pop argument 0, (reset the locals), goto START
+ * so that recursion of this kind runs in a loop with no frames. The locals are set back to 0 as a call
+ * would, except those that are always written before they are read.
+ */
+class TailCalls {
+
+    static final String START = "START"; //the compiler's own labels are L0, L1...
+
+    private final VMProgram program;
+    private int replaced;
+
+    TailCalls(VMProgram program) {
+        this.program = program;
+    }
+
+    /* Returns the number of calls replaced */
+    int run() {
+        for (VMFunction function : program.getFunctions())
+            replace(function);
+        return replaced;
+    }
+
+    private void replace(VMFunction function) {
+        ArrayList<VMCommand> commands = function.commands;
+        ArrayList<VMCommand> result = null;
+        ArrayList<Integer> locals = null;
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.is("call", function.name) && i + 1 < commands.size() && commands.get(i + 1).is("return")) {
+                if (result == null) {
+                    result = new ArrayList<>(commands.size() + 8);
+                    result.add(new VMCommand("label", START, 0).atLine(function.line));
+                    result.addAll(commands.subList(0, i));
+                    locals = localsToReset(function);
+                }
+                for (int k = command.arg2 - 1; k >= 0; k--)
+                    result.add(new VMCommand("pop", "argument", k).atLine(command.line));
+                for (int local : locals) {
+                    result.add(new VMCommand("push", "constant", 0).atLine(command.line));
+                    result.add(new VMCommand("pop", "local", local).atLine(command.line));
+                }
+                result.add(new VMCommand("goto", START, 0).atLine(command.line));
+                i++;
+                replaced++;
+            } else if (result != null) {
+                result.add(command);
+            }
+        }
+        if (result != null)
+            function.commands = result;
+    }
+
+    /* The locals that can be read before they are written, the straight code at the start is checked */
+    private static ArrayList<Integer> localsToReset(VMFunction function) {
+        HashSet<Integer> written = new HashSet<>();
+        HashSet<Integer> read = new HashSet<>();
+        for (VMCommand command : function.commands) {
+            if (command.is("label") || command.is("goto") || command.is("if-goto") || command.is("return"))
+                break;
+            if (command.is("pop", "local") && !read.contains(command.arg2))
+                written.add(command.arg2);
+            else if (command.is("push", "local"))
+                read.add(command.arg2);
+        }
+        ArrayList<Integer> locals = new ArrayList<>();
+        for (int local = 0; local < function.numberOfLocalVariables; local++)
+            if (!written.contains(local))
+                locals.add(local);
+        return locals;
+    }
+}
@@ -0,0 +1,60 @@
+package io.github.hbusul;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/*
+ * Removes the functions of a program that can not be reached from the entry point. The call graph is
+ * built from the call commands, calls to functions outside of the program (the OS) are ignored. The OS
+ * calls functions too, so the program's own versions of OS classes are all kept: its Sys.init is where it
+ * starts, and Math.init or a Memory.alloc that Array.new uses are called by the rest of the OS.
+ */
+class TreeShaker {
+    static final String ENTRY_POINT = "Main.main";
+
+    private VMProgram program;
+
+    TreeShaker(VMProgram program) {
+        this.program = program;
+    }
+
+    HashSet<String> findReachable(Iterable<String> roots) {
+        HashSet<String> reachable = new HashSet<>();
+        ArrayDeque<String> work = new ArrayDeque<>();
+        for (String root : roots)
+            if (reachable.add(root))
+                work.push(root);
+        while (!work.isEmpty()) {
+            VMFunction function = program.getFunction(work.pop());
+            if (function == null)
+                continue;
+            for (VMCommand command : function.commands) {
+                if (command.is("call") && reachable.add(command.arg1))
+                    work.push(command.arg1);
+            }
+        }
+        return reachable;
+    }
+
+    /* Returns the names of the removed functions, nothing is removed if the program has no entry point */
+    ArrayList<String> run() {
+        ArrayList<String> removed = new ArrayList<>();
+        if (program.getFunction(ENTRY_POINT) == null)
+            return removed;
+
+        ArrayList<String> roots = new ArrayList<>();
+        roots.add(ENTRY_POINT);
+        for (VMFunction function : program.getFunctions())
+            if (SignatureIndex.isOSClass(function.getClassName()))
+                roots.add(function.name);
+        HashSet<String> reachable = findReachable(roots);
+        for (VMFunction function : program.getFunctions()) {
+            if (!reachable.contains(function.name))
+                removed.add(function.name);
+        }
+        for (String name : removed)
+            program.removeFunction(name);
+        return removed;
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.hbusul;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/* Receives a parse tree or a token stream element by element, as it is produced */
+interface TreeWriter extends Closeable {
+    void openTag(String tagName) throws IOException;
+
+    void closeTag(String tagName) throws IOException;
+
+    void writeValue(String str) throws IOException;
+
+    void flush() throws IOException;
+
+    /* Drops everything */
+    TreeWriter NONE = new TreeWriter() {
+        @Override
+        public void openTag(String tagName) {
+        }
+
+        @Override
+        public void closeTag(String tagName) {
+        }
+
+        @Override
+        public void writeValue(String str) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /* Writes everything to both first and second */
+    static TreeWriter both(TreeWriter first, TreeWriter second) {
+        return new TreeWriter() {
+            @Override
+            public void openTag(String tagName) throws IOException {
+                first.openTag(tagName);
+                second.openTag(tagName);
+            }
+
+            @Override
+            public void closeTag(String tagName) throws IOException {
+                first.closeTag(tagName);
+                second.closeTag(tagName);
+            }
+
+            @Override
+            public void writeValue(String str) throws IOException {
+                first.writeValue(str);
+                second.writeValue(str);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                first.flush();
+                second.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    first.close();
+                } finally {
+                    second.close();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.hbusul;
+
+/* A single vm command as written by VMWriter, e.g. "push local 0", "call Math.multiply 2" or "add" */
+class VMCommand {
+    final String command;
+    final String arg1;
+    final int arg2;
+    int line; //Jack line the command comes from, 0 if unknown
+
+    VMCommand(String command, String arg1, int arg2) {
+        this.command = command;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+    }
+
+    VMCommand(String command) {
+        this(command, null, 0);
+    }
+
+    static VMCommand parse(String line) {
+        String[] parts = new String[3];
+        int count = 0;
+        int i = 0;
+        while (true) {
+            while (i < line.length() && Character.isWhitespace(line.charAt(i)))
+                i++;
+            if (i == line.length())
+                break;
+            int start = i;
+            while (i < line.length() && !Character.isWhitespace(line.charAt(i)))
+                i++;
+            if (count == parts.length)
+                throw new RuntimeException("Malformed vm command: " + line);
+            parts[count++] = line.substring(start, i);
+        }
+        switch (count) {
+            case 1:
+                return new VMCommand(parts[0]);
+            case 2:
+                return new VMCommand(parts[0], parts[1], 0);
+            case 3:
+                return new VMCommand(parts[0], parts[1], Integer.parseInt(parts[2]));
+            default:
+                throw new RuntimeException("Malformed vm command: " + line);
+        }
+    }
+
+    /* This command, or a copy of it when it comes from another line */
+    VMCommand atLine(int line) {
+        if (line == this.line)
+            return this;
+        VMCommand copy = new VMCommand(command, arg1, arg2);
+        copy.line = line;
+        return copy;
+    }
+
+    boolean is(String command) {
+        return this.command.equals(command);
+    }
+
+    boolean is(String command, String arg1) {
+        return this.command.equals(command) && arg1.equals(this.arg1);
+    }
+
+    boolean is(String command, String arg1, int arg2) {
+        return is(command, arg1) && this.arg2 == arg2;
+    }
+
+    @Override
+    public String toString() {
+        if (arg1 == null)
+            return command;
+        if (command.equals("label") || command.equals("goto") || command.equals("if-goto"))
+            return command + " " + arg1;
+        return command + " " + arg1 + " " + arg2;
+    }
+}
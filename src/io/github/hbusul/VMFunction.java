@@ -0,0 +1,29 @@
+package io.github.hbusul;
+
+import java.util.ArrayList;
+
+/* A function of a compiled class, its commands do not include the function declaration itself */
+class VMFunction {
+    final String name;
+    int numberOfLocalVariables;
+    int line; //Jack line of the declaration, 0 if unknown
+    ArrayList<VMCommand> commands;
+
+    VMFunction(String name, int numberOfLocalVariables) {
+        this.name = name;
+        this.numberOfLocalVariables = numberOfLocalVariables;
+        commands = new ArrayList<>();
+    }
+
+    String getClassName() {
+        return name.substring(0, name.indexOf('.'));
+    }
+
+    int countCommands(String command) {
+        int count = 0;
+        for (VMCommand c : commands)
+            if (c.is(command))
+                count++;
+        return count;
+    }
+}
@@ -0,0 +1,140 @@
+package io.github.hbusul;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Tracks the blocks a program run by VMMachine allocates on the heap by the site that asked for them: the
+ * function and Jack line (when the program has a source map) of the last call into an OS class made from a
+ * function that is not of an OS class. So the strings of string constants, Array.new, the objects of
+ * constructors and Keyboard.readLine are counted where the Jack code needs them, also when the program has
+ * its own String or Memory class.
+ *
+ * The blocks are those returned by Memory.alloc, the one of the OS or the program's, until they are given to
+ * Memory.deAlloc. Sizes are in words as they are asked for, a block of the OS takes one more for its length.
+ */
+class VMHeapTracker {
+
+    private static final int OS_SITE = 0; //allocations before the program called the OS
+
+    private final BytecodeCompiler compiler;
+    int site = OS_SITE; //updated by the generated code
+    private final HashMap<String, Integer> siteIds = new HashMap<>();
+    private final ArrayList<String> siteNames = new ArrayList<>();
+    //allocations, words, frees, live blocks and live words of each site
+    private long[] counts = new long[16 * 5];
+    private static final int ALLOCATIONS = 0;
+    private static final int WORDS = 1;
+    private static final int FREES = 2;
+    private static final int LIVE_BLOCKS = 3;
+    private static final int LIVE_WORDS = 4;
+    private static final int COUNTS = 5;
+
+    //the size and the site + 1 of the live block at each address, 0 if there is none
+    private final int[] blockSizes = new int[HackOS.RAM_SIZE];
+    private final int[] blockSites = new int[HackOS.RAM_SIZE];
+    private long allocations;
+    private long frees;
+    private long unknownFrees;
+    private int liveWords;
+    private int peakWords;
+
+    VMHeapTracker(BytecodeCompiler compiler) {
+        this.compiler = compiler;
+        siteIds.put("(the OS)", OS_SITE);
+        siteNames.add("(the OS)");
+    }
+
+    /* The id of the site of the calls at a line of a function, line is the Jack line or 0 */
+    int siteId(int function, int line) {
+        String name = compiler.getName(function) + (line > 0 ? " (line " + line + ")" : "");
+        Integer id = siteIds.get(name);
+        if (id == null) {
+            id = siteNames.size();
+            siteIds.put(name, id);
+            siteNames.add(name);
+            if (id * COUNTS == counts.length)
+                counts = Arrays.copyOf(counts, counts.length * 2);
+        }
+        return id;
+    }
+
+    /* Memory.alloc(size) returned address */
+    void allocated(int address, int size) {
+        allocations++;
+        counts[site * COUNTS + ALLOCATIONS]++;
+        counts[site * COUNTS + WORDS] += size;
+        if (address < 0 || address >= HackOS.RAM_SIZE)
+            return;
+        if (blockSites[address] != 0)
+            release(address); //the program's allocator gave the block out twice
+        blockSizes[address] = size;
+        blockSites[address] = site + 1;
+        counts[site * COUNTS + LIVE_BLOCKS]++;
+        counts[site * COUNTS + LIVE_WORDS] += size;
+        liveWords += size;
+        peakWords = Math.max(peakWords, liveWords);
+    }
+
+    /* Memory.deAlloc(address) was called */
+    void freed(int address) {
+        frees++;
+        if (address < 0 || address >= HackOS.RAM_SIZE || blockSites[address] == 0) {
+            unknownFrees++;
+            return;
+        }
+        counts[(blockSites[address] - 1) * COUNTS + FREES]++;
+        release(address);
+    }
+
+    private void release(int address) {
+        int base = (blockSites[address] - 1) * COUNTS;
+        counts[base + LIVE_BLOCKS]--;
+        counts[base + LIVE_WORDS] -= blockSizes[address];
+        liveWords -= blockSizes[address];
+        blockSizes[address] = 0;
+        blockSites[address] = 0;
+    }
+
+    /*
+     * The totals, the sites that allocated by words, then the leak candidates: the sites of the blocks that were
+     * still allocated when the program ended, by their words
+     */
+    void printReport(PrintStream out) {
+        out.printf("%,d allocations, %,d frees, at most %,d words live of a %,d word heap, %,d live at the end%n",
+                allocations, frees, peakWords, HackOS.HEAP_END - HackOS.HEAP_BASE, liveWords);
+        if (unknownFrees > 0)
+            out.printf("%,d frees of blocks that were not allocated%n", unknownFrees);
+        ArrayList<Integer> sites = new ArrayList<>();
+        for (int site = 0; site < siteNames.size(); site++)
+            if (count(site, ALLOCATIONS) > 0)
+                sites.add(site);
+        if (sites.isEmpty())
+            return;
+        sites.sort((a, b) -> Long.compare(count(b, WORDS), count(a, WORDS)));
+        int width = 4;
+        for (int site : sites)
+            width = Math.max(width, siteNames.get(site).length());
+        out.printf("%-" + width + "s %12s %14s %12s %12s %12s%n", "site", "allocations", "words", "frees",
+                "live blocks", "live words");
+        for (int site : sites)
+            out.printf("%-" + width + "s %,12d %,14d %,12d %,12d %,12d%n", siteNames.get(site),
+                    count(site, ALLOCATIONS), count(site, WORDS), count(site, FREES), count(site, LIVE_BLOCKS),
+                    count(site, LIVE_WORDS));
+
+        sites.removeIf(site -> count(site, LIVE_BLOCKS) == 0);
+        if (sites.isEmpty())
+            return;
+        sites.sort((a, b) -> Long.compare(count(b, LIVE_WORDS), count(a, LIVE_WORDS)));
+        out.println("leak candidates, still allocated at the end:");
+        for (int site : sites)
+            out.printf("  %-" + width + "s %,12d blocks %,12d words%n", siteNames.get(site),
+                    count(site, LIVE_BLOCKS), count(site, LIVE_WORDS));
+    }
+
+    private long count(int site, int count) {
+        return counts[site * COUNTS + count];
+    }
+}
@@ -0,0 +1,448 @@
+package io.github.hbusul;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+ * Runs a vm program headless in this JVM. BytecodeCompiler translates the functions to the methods of a class
+ * that is loaded as a hidden class of this package, so that the JIT compiles the hot Jack code, and HackOS
+ * is the OS. The program starts at its Sys.init or at the one of the OS, which calls Main.main.
+ *
+ * The functions that can not be methods are run by the interpreter here. Its code is the vm code decoded
+ * to ints, three for each command: the operation and its operands, jumps go to positions in the code.
+ */
+class VMMachine {
+
+    private static final int PUSH_CONSTANT = 0;
+    private static final int PUSH_LOCAL = 1;
+    private static final int PUSH_ARGUMENT = 2;
+    private static final int PUSH_THIS = 3;
+    private static final int PUSH_THAT = 4;
+    private static final int PUSH_THIS_POINTER = 5;
+    private static final int PUSH_THAT_POINTER = 6;
+    private static final int PUSH_RAM = 7; //static and temp, the operand is the address
+    private static final int POP_LOCAL = 8;
+    private static final int POP_ARGUMENT = 9;
+    private static final int POP_THIS = 10;
+    private static final int POP_THAT = 11;
+    private static final int POP_THIS_POINTER = 12;
+    private static final int POP_THAT_POINTER = 13;
+    private static final int POP_RAM = 14;
+    private static final int ADD = 15;
+    private static final int SUB = 16;
+    private static final int NEG = 17;
+    private static final int AND = 18;
+    private static final int OR = 19;
+    private static final int NOT = 20;
+    private static final int EQ = 21;
+    private static final int GT = 22;
+    private static final int LT = 23;
+    private static final int GOTO = 24;
+    private static final int IF_GOTO = 25;
+    private static final int CALL = 26; //function id, number of arguments pushed
+    private static final int RETURN = 27;
+    private static final int END = 28;
+    private static final int COUNT = 29; //instructions of the block that starts here, for the profiler
+    private static final int LOOP = 30; //loop id, for the profiler
+    private static final int SITE = 31; //site id of the call that follows, for the heap tracker
+
+    private final BytecodeCompiler compiler;
+    private final HackOS os;
+    private final MethodHandle[] handles; //(int[])int, by function id
+    private final int[][] decoded;
+    private final VMProfiler profiler;
+    private final VMHeapTracker heap;
+
+    /* With profile the run is profiled and with trackHeap its allocations are tracked, see the getters */
+    VMMachine(VMProgram program, Reader input, Writer output, boolean interpretAll, boolean profile,
+              boolean trackHeap) {
+        compiler = new BytecodeCompiler(program);
+        os = new HackOS(input, output);
+        profiler = profile ? new VMProfiler(compiler) : null;
+        heap = trackHeap ? new VMHeapTracker(compiler) : null;
+        os.setHeapTracker(heap);
+        byte[] classFile = compiler.compile(interpretAll, profiler, heap);
+        handles = new MethodHandle[compiler.getFunctionCount()];
+        decoded = new int[compiler.getFunctionCount()][];
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            Class<?> jackProgram = lookup.lookupClass();
+            lookup.findStatic(jackProgram, "init", MethodType.methodType(void.class, VMMachine.class,
+                    HackOS.class, VMProfiler.class, VMHeapTracker.class)).invoke(this, os, profiler, heap);
+            for (int id = 0; id < handles.length; id++) {
+                int arguments = compiler.getArgumentCount(id);
+                MethodType type = MethodType.methodType(int.class, Collections.nCopies(arguments, int.class));
+                handles[id] = lookup.findStatic(jackProgram, compiler.getMethodName(id), type)
+                        .asSpreader(int[].class, arguments);
+            }
+        } catch (Throwable e) {
+            throw new RuntimeException("The translated program could not be loaded", e);
+        }
+        os.setMachine(this);
+    }
+
+    /* Runs the program until it returns from Sys.init or halts, returns the error code it halted with */
+    int run() {
+        try {
+            if (defines("Sys.init"))
+                call("Sys.init");
+            else
+                os.Sys_init();
+            return 0;
+        } catch (HackOS.Halt halt) {
+            return halt.errorCode;
+        } catch (StackOverflowError e) {
+            throw new RuntimeException("Stack overflow, the calls are nested too deeply");
+        } finally {
+            os.flush();
+        }
+    }
+
+    /* null unless the run is profiled */
+    VMProfiler getProfiler() {
+        return profiler;
+    }
+
+    /* null unless the allocations are tracked */
+    VMHeapTracker getHeapTracker() {
+        return heap;
+    }
+
+    /* Called by the method of a function that used an address outside of the RAM */
+    RuntimeException outOfRange(ArrayIndexOutOfBoundsException e, int id) {
+        return new RuntimeException("Memory address out of range in " + compiler.getName(id), e);
+    }
+
+    boolean defines(String name) {
+        int id = compiler.getId(name);
+        return id >= 0 && compiler.getFunction(id) != null;
+    }
+
+    /* Calls a function of the program or of the OS */
+    int call(String name, int... arguments) {
+        int id = compiler.getId(name);
+        if (id < 0 || !compiler.isDefined(id))
+            throw new RuntimeException(name + " is not defined");
+        return invoke(id, Arrays.copyOf(arguments, compiler.getArgumentCount(id)));
+    }
+
+    private int invoke(int id, int[] arguments) {
+        try {
+            return (int) handles[id].invokeExact(arguments);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Called instead of a function that is neither in the program nor in the OS */
+    int undefined(int id) {
+        throw new RuntimeException(compiler.getName(id) + " is not defined");
+    }
+
+    /* Runs a function with the interpreter, the stubs of BytecodeCompiler call this */
+    int interpret(int id, int[] arguments) {
+        if (profiler == null)
+            return execute(id, arguments, null);
+        //the counts the generated code keeps in locals, see BytecodeCompiler.translate
+        long[] counts = {profiler.instructions, 0, 0, -1, -1};
+        int value;
+        try {
+            value = execute(id, arguments, counts);
+        } catch (RuntimeException | Error e) {
+            profiler.unwound(id, counts[0], counts[1], counts[2], counts[3], counts[4]);
+            throw e;
+        }
+        profiler.exit(id, counts[0], counts[1], counts[2]);
+        return value;
+    }
+
+    /* With counts of a profiled call: start, calls, recursive, callStart and recursiveStart */
+    private int execute(int id, int[] arguments, long[] counts) {
+        int[] code = decoded[id];
+        if (code == null)
+            code = decoded[id] = decode(id);
+        short[] ram = os.ram;
+        int[] locals = new int[compiler.getFunction(id).numberOfLocalVariables];
+        int[] stack = new int[16];
+        int sp = 0;
+        int thisPointer = 0;
+        int thatPointer = 0;
+        int pc = 0;
+        while (true) {
+            if (sp + 1 >= stack.length)
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            int operand = code[pc + 1];
+            switch (code[pc]) {
+                case PUSH_CONSTANT:
+                    stack[sp++] = operand;
+                    break;
+                case PUSH_LOCAL:
+                    stack[sp++] = locals[operand];
+                    break;
+                case PUSH_ARGUMENT:
+                    stack[sp++] = arguments[operand];
+                    break;
+                case PUSH_THIS:
+                    stack[sp++] = ram[thisPointer + operand];
+                    break;
+                case PUSH_THAT:
+                    stack[sp++] = ram[thatPointer + operand];
+                    break;
+                case PUSH_THIS_POINTER:
+                    stack[sp++] = thisPointer;
+                    break;
+                case PUSH_THAT_POINTER:
+                    stack[sp++] = thatPointer;
+                    break;
+                case PUSH_RAM:
+                    stack[sp++] = ram[operand];
+                    break;
+                case POP_LOCAL:
+                    locals[operand] = stack[--sp];
+                    break;
+                case POP_ARGUMENT:
+                    arguments[operand] = stack[--sp];
+                    break;
+                case POP_THIS:
+                    ram[thisPointer + operand] = (short) stack[--sp];
+                    break;
+                case POP_THAT:
+                    ram[thatPointer + operand] = (short) stack[--sp];
+                    break;
+                case POP_THIS_POINTER:
+                    thisPointer = stack[--sp];
+                    break;
+                case POP_THAT_POINTER:
+                    thatPointer = stack[--sp];
+                    break;
+                case POP_RAM:
+                    ram[operand] = (short) stack[--sp];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = (short) (stack[sp - 1] + stack[sp]);
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = (short) (stack[sp - 1] - stack[sp]);
+                    break;
+                case NEG:
+                    stack[sp - 1] = (short) -stack[sp - 1];
+                    break;
+                case AND:
+                    sp--;
+                    stack[sp - 1] &= stack[sp];
+                    break;
+                case OR:
+                    sp--;
+                    stack[sp - 1] |= stack[sp];
+                    break;
+                case NOT:
+                    stack[sp - 1] = ~stack[sp - 1];
+                    break;
+                case EQ:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] == stack[sp] ? -1 : 0;
+                    break;
+                case GT:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] > stack[sp] ? -1 : 0;
+                    break;
+                case LT:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] < stack[sp] ? -1 : 0;
+                    break;
+                case GOTO:
+                    pc = operand;
+                    continue;
+                case IF_GOTO:
+                    if (stack[--sp] != 0) {
+                        pc = operand;
+                        continue;
+                    }
+                    break;
+                case CALL:
+                    int pushed = code[pc + 2];
+                    int[] callArguments = new int[compiler.getArgumentCount(operand)];
+                    sp -= pushed;
+                    System.arraycopy(stack, sp, callArguments, 0, pushed);
+                    if (counts == null) {
+                        stack[sp++] = invoke(operand, callArguments);
+                        break;
+                    }
+                    int callStart = operand == id ? 4 : 3;
+                    counts[callStart] = profiler.instructions;
+                    stack[sp++] = invoke(operand, callArguments);
+                    long called = profiler.instructions - counts[callStart];
+                    counts[1] += called;
+                    if (operand == id)
+                        counts[2] += called;
+                    counts[callStart] = -1;
+                    break;
+                case RETURN:
+                    return stack[sp - 1];
+                case COUNT:
+                    profiler.count(operand);
+                    break;
+                case LOOP:
+                    profiler.trips[operand]++;
+                    break;
+                case SITE:
+                    heap.site = operand;
+                    break;
+                default: //END, the function ends without a return
+                    return 0;
+            }
+            pc += 3;
+        }
+    }
+
+    private int[] decode(int id) {
+        VMFunction function = compiler.getFunction(id);
+        ArrayList<VMCommand> commands = function.commands;
+        int[] blocks = profiler != null ? BytecodeCompiler.blockLengths(function) : new int[commands.size()];
+        HashSet<String> loops = profiler != null ? BytecodeCompiler.loopLabels(function) : new HashSet<>();
+        HashMap<String, Integer> labels = new HashMap<>();
+        int position = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.is("label"))
+                labels.put(command.arg1, position);
+            if (!command.is("label") || loops.contains(command.arg1))
+                position += 3;
+            if (blocks[i] > 0)
+                position += 3;
+            if (command.is("call") && compiler.setsSite(id, compiler.getId(command.arg1)))
+                position += 3;
+        }
+        int[] code = new int[position + 3];
+        position = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.is("label")) {
+                if (loops.contains(command.arg1)) {
+                    code[position] = LOOP;
+                    code[position + 1] = profiler.loopId(id, command.arg1, command.line);
+                    position += 3;
+                }
+                continue;
+            }
+            if (blocks[i] > 0) {
+                code[position] = COUNT;
+                code[position + 1] = blocks[i];
+                position += 3;
+            }
+            if (command.is("call") && compiler.setsSite(id, compiler.getId(command.arg1))) {
+                code[position] = SITE;
+                code[position + 1] = heap.siteId(id, command.line);
+                position += 3;
+            }
+            int operation;
+            int operand = command.arg2;
+            switch (command.command) {
+                case "push":
+                case "pop":
+                    boolean push = command.is("push");
+                    switch (command.arg1) {
+                        case "constant":
+                            if (!push)
+                                throw new RuntimeException("Can not pop to constant in " + function.name);
+                            operation = PUSH_CONSTANT;
+                            operand = (short) operand;
+                            break;
+                        case "local":
+                            operation = push ? PUSH_LOCAL : POP_LOCAL;
+                            break;
+                        case "argument":
+                            operation = push ? PUSH_ARGUMENT : POP_ARGUMENT;
+                            break;
+                        case "this":
+                            operation = push ? PUSH_THIS : POP_THIS;
+                            break;
+                        case "that":
+                            operation = push ? PUSH_THAT : POP_THAT;
+                            break;
+                        case "pointer":
+                            if (operand > 1)
+                                throw new RuntimeException("No such pointer in " + command + " in " + function.name);
+                            if (operand == 0)
+                                operation = push ? PUSH_THIS_POINTER : POP_THIS_POINTER;
+                            else
+                                operation = push ? PUSH_THAT_POINTER : POP_THAT_POINTER;
+                            break;
+                        case "temp":
+                            operation = push ? PUSH_RAM : POP_RAM;
+                            operand = 5 + operand;
+                            break;
+                        case "static":
+                            operation = push ? PUSH_RAM : POP_RAM;
+                            operand = compiler.getStaticBase(id) + operand;
+                            break;
+                        default:
+                            throw new RuntimeException("Unknown segment in " + command + " in " + function.name);
+                    }
+                    break;
+                case "add":
+                    operation = ADD;
+                    break;
+                case "sub":
+                    operation = SUB;
+                    break;
+                case "neg":
+                    operation = NEG;
+                    break;
+                case "and":
+                    operation = AND;
+                    break;
+                case "or":
+                    operation = OR;
+                    break;
+                case "not":
+                    operation = NOT;
+                    break;
+                case "eq":
+                    operation = EQ;
+                    break;
+                case "gt":
+                    operation = GT;
+                    break;
+                case "lt":
+                    operation = LT;
+                    break;
+                case "goto":
+                case "if-goto":
+                    operation = command.is("goto") ? GOTO : IF_GOTO;
+                    Integer target = labels.get(command.arg1);
+                    if (target == null)
+                        throw new RuntimeException("Unknown label " + command.arg1 + " in " + function.name);
+                    operand = target;
+                    break;
+                case "call":
+                    operation = CALL;
+                    operand = compiler.getId(command.arg1);
+                    code[position + 2] = command.arg2;
+                    break;
+                case "return":
+                    operation = RETURN;
+                    break;
+                default:
+                    throw new RuntimeException("Unknown vm command " + command + " in " + function.name);
+            }
+            code[position] = operation;
+            code[position + 1] = operand;
+            position += 3;
+        }
+        code[position] = END;
+        return code;
+    }
+}
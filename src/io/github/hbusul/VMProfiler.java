@@ -0,0 +1,132 @@
+package io.github.hbusul;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Counts what a program run by VMMachine does, by function: calls, the vm instructions it executed itself
+ * (exclusive) and those executed until it returned, in the functions it called too (inclusive). Labels
+ * are not instructions. The calls a function makes to itself are left out of its inclusive count, so that
+ * recursion is not counted more than once. For each loop, a label that is jumped back to, the number of
+ * times its label is reached is counted. Only calls are counted for the OS.
+ *
+ * The code BytecodeCompiler generates with a profiler adds the number of instructions of each basic block to
+ * instructions when the block starts, that is all it does on the hot path. A function keeps the instructions
+ * when it started and those spent in the calls it made in JVM locals and passes them to exit when it returns,
+ * or when Sys.halt or an error leaves it.
+ */
+class VMProfiler {
+
+    private final BytecodeCompiler compiler;
+    long instructions; //updated by the generated code
+    //calls, exclusive and inclusive instructions of each function
+    private final long[] counts;
+    private static final int CALLS = 0;
+    private static final int EXCLUSIVE = 1;
+    private static final int INCLUSIVE = 2;
+    private static final int COUNTS = 3;
+
+    private final HashMap<String, Integer> loopIds = new HashMap<>();
+    private final ArrayList<String> loopNames = new ArrayList<>();
+    long[] trips = new long[16]; //by loop id, updated by the generated code
+
+    VMProfiler(BytecodeCompiler compiler) {
+        this.compiler = compiler;
+        counts = new long[compiler.getFunctionCount() * COUNTS];
+    }
+
+    /* The id of the loop at a label, line is its Jack line or 0 */
+    int loopId(int function, String label, int line) {
+        String name = compiler.getName(function) + " " + label + (line > 0 ? " (line " + line + ")" : "");
+        Integer id = loopIds.get(name);
+        if (id == null) {
+            id = loopNames.size();
+            loopIds.put(name, id);
+            loopNames.add(name);
+            if (id == trips.length)
+                trips = Arrays.copyOf(trips, id * 2);
+        }
+        return id;
+    }
+
+    /* The interpreter counts with this */
+    void count(int instructions) {
+        this.instructions += instructions;
+    }
+
+    /* A call of an OS function */
+    void called(int function) {
+        counts[function * COUNTS + CALLS]++;
+    }
+
+    /*
+     * A call of a function returned, it started when start instructions were counted, calls of them were counted
+     * in the calls it made and recursive in the calls it made to itself
+     */
+    void exit(int function, long start, long calls, long recursive) {
+        int base = function * COUNTS;
+        long elapsed = instructions - start;
+        counts[base + CALLS]++;
+        counts[base + EXCLUSIVE] += elapsed - calls;
+        counts[base + INCLUSIVE] += elapsed - recursive;
+    }
+
+    /*
+     * A call of a function was left by Sys.halt or an error, during the call it made that started at callStart
+     * or the call to itself that started at recursiveStart (-1 if it was not in a call)
+     */
+    void unwound(int function, long start, long calls, long recursive, long callStart, long recursiveStart) {
+        if (callStart >= 0)
+            calls += instructions - callStart;
+        if (recursiveStart >= 0) {
+            calls += instructions - recursiveStart;
+            recursive += instructions - recursiveStart;
+        }
+        exit(function, start, calls, recursive);
+    }
+
+    /* The functions that were called by exclusive instructions, then the loops by trips */
+    void printReport(PrintStream out) {
+        out.printf("%,d vm instructions%n", instructions);
+        ArrayList<Integer> functions = new ArrayList<>();
+        for (int function = 0; function < compiler.getFunctionCount(); function++)
+            if (count(function, CALLS) > 0)
+                functions.add(function);
+        functions.sort((a, b) -> count(a, EXCLUSIVE) != count(b, EXCLUSIVE)
+                ? Long.compare(count(b, EXCLUSIVE), count(a, EXCLUSIVE))
+                : Long.compare(count(b, CALLS), count(a, CALLS)));
+        int width = 8;
+        for (int function : functions)
+            width = Math.max(width, compiler.getName(function).length());
+        out.printf("%-" + width + "s %14s %16s %6s %16s %6s%n", "function", "calls", "exclusive", "%",
+                "inclusive", "%");
+        for (int function : functions)
+            out.printf("%-" + width + "s %,14d %,16d %6.2f %,16d %6.2f%n", compiler.getName(function),
+                    count(function, CALLS), count(function, EXCLUSIVE), percent(count(function, EXCLUSIVE)),
+                    count(function, INCLUSIVE), percent(count(function, INCLUSIVE)));
+
+        ArrayList<Integer> loops = new ArrayList<>();
+        for (int loop = 0; loop < loopNames.size(); loop++)
+            if (trips[loop] > 0)
+                loops.add(loop);
+        if (loops.isEmpty())
+            return;
+        loops.sort((a, b) -> Long.compare(trips[b], trips[a]));
+        width = 4;
+        for (int loop : loops)
+            width = Math.max(width, loopNames.get(loop).length());
+        out.printf("%-" + width + "s %16s%n", "loop", "trips");
+        for (int loop : loops)
+            out.printf("%-" + width + "s %,16d%n", loopNames.get(loop), trips[loop]);
+    }
+
+    private long count(int function, int count) {
+        return counts[function * COUNTS + count];
+    }
+
+    private double percent(long count) {
+        return instructions == 0 ? 0 : 100.0 * count / instructions;
+    }
+}
@@ -0,0 +1,123 @@
+package io.github.hbusul;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/* The compiled classes of a program, by the name of the .vm file each one is written to */
+class VMProgram {
+    private LinkedHashMap<String, ArrayList<VMFunction>> files;
+    private LinkedHashMap<String, VMFunction> functions;
+
+    VMProgram() {
+        files = new LinkedHashMap<>();
+        functions = new LinkedHashMap<>();
+    }
+
+    /*
+     * Parses vm code, the functions are not added to any program. "//line n" markers give the Jack line of
+     * the commands after them, other comments are skipped.
+     */
+    static ArrayList<VMFunction> parse(BufferedReader reader, String fileName) throws IOException {
+        return parse(reader, fileName, null);
+    }
+
+    /* sourceLines gives the Jack line of each vm line instead, as read from a source map */
+    static ArrayList<VMFunction> parse(BufferedReader reader, String fileName, int[] sourceLines)
+            throws IOException {
+        ArrayList<VMFunction> fileFunctions = new ArrayList<>();
+        VMFunction current = null;
+        int sourceLine = 0;
+        int vmLine = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(SourceMapWriter.MARKER)) {
+                sourceLine = Integer.parseInt(line.substring(SourceMapWriter.MARKER.length()));
+                continue;
+            }
+            vmLine++;
+            if (sourceLines != null)
+                sourceLine = vmLine < sourceLines.length ? sourceLines[vmLine] : 0;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("//"))
+                continue;
+            VMCommand command = VMCommand.parse(line);
+            command.line = sourceLine;
+            if (command.is("function")) {
+                current = new VMFunction(command.arg1, command.arg2);
+                current.line = sourceLine;
+                fileFunctions.add(current);
+            } else if (current == null) {
+                throw new RuntimeException("Command outside of a function in " + fileName);
+            } else {
+                current.commands.add(command);
+            }
+        }
+        return fileFunctions;
+    }
+
+    void addFile(String fileName, ArrayList<VMFunction> fileFunctions) {
+        files.put(fileName, fileFunctions);
+        for (VMFunction function : fileFunctions)
+            functions.put(function.name, function);
+    }
+
+    ArrayList<String> getFileNames() {
+        return new ArrayList<>(files.keySet());
+    }
+
+    void write(String fileName) throws IOException {
+        write(fileName, null);
+    }
+
+    /* With a sourceName the source map of the file is written to fileName + ".map", see SourceMapWriter */
+    void write(String fileName, String sourceName) throws IOException {
+        Writer output = new ChannelWriter(fileName);
+        if (sourceName != null)
+            output = new SourceMapWriter(output, new ChannelWriter(fileName + ".map"), sourceName);
+        try (Writer writer = output) {
+            write(fileName, writer, sourceName != null);
+        }
+    }
+
+    /* The code of one file, with "//line n" markers if sourceLines */
+    void write(String fileName, Writer writer, boolean sourceLines) throws IOException {
+        int sourceLine = 0;
+        for (VMFunction function : files.get(fileName)) {
+            if (sourceLines && function.line != sourceLine) {
+                sourceLine = function.line;
+                writer.write(SourceMapWriter.MARKER + sourceLine + "\n");
+            }
+            writer.write("function " + function.name + " " + function.numberOfLocalVariables + "\n");
+            for (VMCommand command : function.commands) {
+                if (sourceLines && command.line != sourceLine) {
+                    sourceLine = command.line;
+                    writer.write(SourceMapWriter.MARKER + sourceLine + "\n");
+                }
+                writer.write(command.toString());
+                writer.write("\n");
+            }
+        }
+    }
+
+    VMFunction getFunction(String name) {
+        return functions.get(name);
+    }
+
+    /* The functions of one file, in order */
+    ArrayList<VMFunction> getFunctions(String fileName) {
+        return files.get(fileName);
+    }
+
+    Iterable<VMFunction> getFunctions() {
+        return functions.values();
+    }
+
+    void removeFunction(String name) {
+        VMFunction function = functions.remove(name);
+        if (function == null)
+            return;
+        for (ArrayList<VMFunction> fileFunctions : files.values())
+            fileFunctions.remove(function);
+    }
+}
@@ -1,38 +1,108 @@
 package io.github.hbusul;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.Writer;
 
 class VMWriter implements AutoCloseable {
-    private BufferedWriter writer;
-
-    VMWriter(BufferedWriter writer) {
+    private Writer writer;
+
+    /*
+     * What pointer 1 is known to hold, as "segment index" of the array base and of the index variable
+     * (null when the offset is a constant that is folded into the that segment). null base means unknown.
+     */
+    private String thatBase;
+    private String thatIndex;
+
+    /*
+     * With source lines enabled a "//line n" marker is written before the first command of each Jack line,
+     * and at the start of captured code so that it keeps its line wherever it ends up. See SourceMapWriter.
+     */
+    private boolean sourceLines;
+    private int sourceLine;
+    private int markedLine;
+
+    /*Code written between beginCapture and endCapture is kept here instead of being written*/
+    private Capture capture;
+    private boolean capturedReadsThat;
+    private boolean capturedWritesThat;
+
+    private static class Capture {
+        StringBuilder code = new StringBuilder();
+        boolean readsThat;
+        boolean writesThat;
+        Capture outer;
+    }
+
+    /* writer should be buffered, commands are written to it a few characters at a time */
+    VMWriter(Writer writer) {
         this.writer = writer;
     }
 
+    void enableSourceLines() {
+        sourceLines = true;
+    }
+
+    /* The Jack line of the commands written next */
+    void setSourceLine(int line) {
+        if (sourceLines)
+            sourceLine = line;
+    }
+
+    private void write(String line) throws IOException {
+        if (sourceLine != markedLine) {
+            markedLine = sourceLine;
+            append(SourceMapWriter.MARKER + sourceLine + "\n");
+        }
+        append(line);
+    }
+
+    private void append(String code) throws IOException {
+        if (capture != null)
+            capture.code.append(code);
+        else
+            writer.write(code);
+    }
+
     void writePush(String segment, int index) throws IOException {
-        writer.write("push " + segment + " " + index + "\n");
+        write("push " + segment + " " + index + "\n");
     }
 
     void writePop(String segment, int index) throws IOException {
-        writer.write("pop " + segment + " " + index + "\n");
+        if (segment.equals("pointer")) {
+            if (index == 1) {
+                if (capture != null)
+                    capture.writesThat = true;
+                forgetThat();
+            } else if (dependsOnSegment("this")) {
+                forgetThat();
+            }
+        } else if (dependsOn(segment + " " + index)) {
+            forgetThat();
+        }
+        write("pop " + segment + " " + index + "\n");
     }
 
     void writeCall(String functionName, int argumentCount) throws IOException {
-        writer.write("call " + functionName + " " + argumentCount + "\n");
+        //THAT is restored on return, but the callee may change fields and statics
+        if (dependsOnSegment("this") || dependsOnSegment("static"))
+            forgetThat();
+        write("call " + functionName + " " + argumentCount + "\n");
     }
 
     void neg() throws IOException {
-        writer.write("neg\n");
+        write("neg\n");
     }
 
 
     void ret() throws IOException {
-        writer.write("return\n");
+        forgetThat();
+        write("return\n");
     }
 
     void writeLabel(String label) throws IOException {
-        writer.write("label " + label + "\n");
+        //another path can jump here, pointer 1 is unknown
+        forgetThat();
+        write("label " + label + "\n");
     }
 
     @Override
@@ -40,53 +110,130 @@ class VMWriter implements AutoCloseable {
         writer.close();
     }
 
+    void flush() throws IOException {
+        writer.flush();
+    }
+
+    /* Returns true if pointer 1 is known to hold base + index (or base when index is null). */
+    boolean isThatPointing(String base, String index) {
+        if (thatBase == null || !thatBase.equals(base))
+            return false;
+        if (thatIndex == null ? index != null : !thatIndex.equals(index))
+            return false;
+        if (capture != null && !capture.writesThat)
+            capture.readsThat = true; //captured code relies on the pointer set before it
+        return true;
+    }
+
+    void setThatPointing(String base, String index) {
+        thatBase = base;
+        thatIndex = index;
+    }
+
+    void forgetThat() {
+        thatBase = null;
+        thatIndex = null;
+    }
+
+    private boolean dependsOn(String address) {
+        if (thatBase == null)
+            return false;
+        return thatBase.equals(address) || address.equals(thatIndex);
+    }
+
+    private boolean dependsOnSegment(String segment) {
+        if (thatBase == null)
+            return false;
+        return thatBase.startsWith(segment + " ") || (thatIndex != null && thatIndex.startsWith(segment + " "));
+    }
+
+    /* Captures can be nested, the inner one ends up in the outer when written with writeCaptured */
+    void beginCapture() {
+        Capture inner = new Capture();
+        inner.outer = capture;
+        capture = inner;
+        if (sourceLines)
+            markedLine = -1;
+    }
+
+    String endCapture() {
+        Capture inner = capture;
+        capture = inner.outer;
+        if (capture != null) {
+            if (inner.readsThat && !capture.writesThat)
+                capture.readsThat = true;
+            capture.writesThat |= inner.writesThat;
+        }
+        capturedReadsThat = inner.readsThat;
+        capturedWritesThat = inner.writesThat;
+        if (sourceLines)
+            markedLine = -1;
+        return inner.code.toString();
+    }
+
+    /* Whether the last captured code used pointer 1 as it was before the capture */
+    boolean capturedReadsThat() {
+        return capturedReadsThat;
+    }
+
+    /* Whether the last captured code changed pointer 1 */
+    boolean capturedWritesThat() {
+        return capturedWritesThat;
+    }
+
+    void writeCaptured(String code) throws IOException {
+        append(code);
+        if (sourceLines)
+            markedLine = -1; //the captured code may end on another line
+    }
+
 
     void add() throws IOException {
-        writer.write("add\n");
+        write("add\n");
     }
 
     void sub() throws IOException {
-        writer.write("sub\n");
+        write("sub\n");
     }
 
     void mult() throws IOException {
-        writer.write("call Math.multiply 2\n");
+        writeCall("Math.multiply", 2);
     }
 
     void div() throws IOException {
-        writer.write("call Math.divide 2\n");
+        writeCall("Math.divide", 2);
     }
 
     void and() throws IOException {
-        writer.write("and\n");
+        write("and\n");
     }
 
     void or() throws IOException {
-        writer.write("or\n");
+        write("or\n");
     }
 
     void lt() throws IOException {
-        writer.write("lt\n");
+        write("lt\n");
     }
 
     void gt() throws IOException {
-        writer.write("gt\n");
+        write("gt\n");
     }
 
     void eq() throws IOException {
-        writer.write("eq\n");
+        write("eq\n");
     }
 
     void not() throws IOException {
-        writer.write("not\n");
+        write("not\n");
     }
 
     void writeIfGoto(String label) throws IOException {
-        writer.write("if-goto " + label + "\n");
+        write("if-goto " + label + "\n");
     }
 
     void writeGoto(String label) throws IOException {
-        writer.write("goto " + label + "\n");
+        write("goto " + label + "\n");
     }
 
     void writeAlloc(int numberOfBlocks) throws IOException {
@@ -95,6 +242,7 @@ class VMWriter implements AutoCloseable {
     }
 
     void writeFunction(String name, int numberOfLocalVar) throws IOException{
-        writer.write("function " + name + " " + numberOfLocalVar + "\n");
+        forgetThat();
+        write("function " + name + " " + numberOfLocalVar + "\n");
     }
 }
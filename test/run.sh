@@ -0,0 +1,35 @@
+#!/bin/sh
+# Builds the compiler, then compiles the program of each directory of test/ that has an expected.txt with
+# each of MODES, runs it compiled and interpreted and compares the output with expected.txt.
+# usage: test/run.sh
+MODES="-O0 -O2 -stream"
+
+cd "$(dirname "$0")/.." || exit 1
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+javac -d "$work/classes" src/io/github/hbusul/*.java || exit 1
+
+failed=0
+for expected in test/*/expected.txt; do
+    name=$(basename "$(dirname "$expected")")
+    for mode in $MODES; do
+        rm -rf "$work/program"
+        cp -r "$(dirname "$expected")" "$work/program"
+        if ! java -cp "$work/classes" io.github.hbusul.JackCompiler "$work/program" $mode > "$work/log"; then
+            cat "$work/log"
+            echo "FAIL $name $mode: does not compile"
+            failed=1
+            continue
+        fi
+        for runner in "" -interpret; do
+            java -cp "$work/classes" io.github.hbusul.JackCompiler run "$work/program" $runner > "$work/output"
+            if cmp -s "$work/output" "$expected"; then
+                echo "ok   $name $mode $runner"
+            else
+                echo "FAIL $name $mode $runner: expected $(cat "$expected"), got $(cat "$work/output")"
+                failed=1
+            fi
+        done
+    done
+done
+exit $failed
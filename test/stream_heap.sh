@@ -0,0 +1,37 @@
+#!/bin/sh
+# Builds the compiler and compiles a generated class of about 900,000 lines (22 MB) with -stream under a heap
+# of HEAP, which only fits when the streamed tokenizer and writers keep a bounded part of the class in memory.
+# The line starts of the whole class alone took 4 MB before the tokenizer dropped the ones it no longer needs.
+# usage: test/stream_heap.sh [subroutines]
+HEAP=4m
+SUBROUTINES=${1:-300}
+STATEMENTS=500
+
+cd "$(dirname "$0")/.." || exit 1
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+javac -d "$work/classes" src/io/github/hbusul/*.java || exit 1
+
+awk -v subroutines="$SUBROUTINES" -v statements="$STATEMENTS" 'BEGIN {
+    print "class Big {\n    static int s;"
+    for (i = 0; i < subroutines; i++) {
+        printf "    function int f%d(int a) {\n        var int x, y;\n        let x = a;\n", i
+        for (j = 0; j < statements; j++)
+            printf "        let y = (x * %d) + (a - %d);\n        if (y > %d) {\n            let x = x + 1;\n" \
+                "        } else {\n            let s = \"str%d\";\n        }\n", j, j, j, j
+        print "        return x;\n    }"
+    }
+    print "}"
+}' > "$work/Big.jack"
+
+if ! java -Xmx$HEAP -cp "$work/classes" io.github.hbusul.JackCompiler "$work/Big.jack" -stream > "$work/log" 2>&1; then
+    tail -5 "$work/log"
+    echo "FAIL $(wc -l < "$work/Big.jack") lines with -stream -Xmx$HEAP"
+    exit 1
+fi
+functions=$(grep -c '^function' "$work/Big.vm")
+if [ "$functions" -ne "$SUBROUTINES" ]; then
+    echo "FAIL $functions of $SUBROUTINES functions written"
+    exit 1
+fi
+echo "ok   $(wc -l < "$work/Big.jack") lines with -stream -Xmx$HEAP"